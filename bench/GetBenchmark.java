@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures GET throughput on one BoardState at 1, 2, 4 and N reader threads, N being the
+ * available processors, while one writer keeps pinning and unpinning notes. Each GET is a
+ * board.getNotes call, alternating an unfiltered GET with a colour and a contains query, as
+ * ClientHandler issues them, without the socket. Only in-process; no server is started.
+ * Not part of the server: it is compiled against a server build, so the same run can compare
+ * the board's locking across revisions.
+ * Usage: javac -cp <server classes> -d <out> bench/GetBenchmark.java
+ *        java -cp <out>:<server classes> GetBenchmark [notes] [seconds per run]
+ */
+public class GetBenchmark {
+    private static final int BOARD_W = 2000;
+    private static final int BOARD_H = 1000;
+    private static final int NOTE_W = 20;
+    private static final int NOTE_H = 10;
+    private static final String[] COLORS = {"red", "white", "green", "yellow"};
+
+    public static void main(String[] args) throws InterruptedException {
+        int notes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        BoardState board = new BoardState(BOARD_W, BOARD_H, NOTE_W, NOTE_H, new HashSet<>(Arrays.asList(COLORS)));
+        Random random = new Random(1);
+        for (int added = 0; added < notes; ) {
+            int x = random.nextInt(BOARD_W - NOTE_W + 1);
+            int y = random.nextInt(BOARD_H - NOTE_H + 1);
+            if (board.validateAndAddNote(x, y, COLORS[added % COLORS.length], "note " + added) == null) added++;
+        }
+        int cpus = Runtime.getRuntime().availableProcessors();
+        System.out.println(notes + " notes, " + seconds + " s per run, " + cpus + " processors, 1 writer");
+        run(board, 1, 1, false);
+        for (int readers : new int[] {1, 2, 4, cpus}) {
+            run(board, readers, seconds, true);
+        }
+    }
+
+    /** Runs readers GET threads and one writer for seconds and, with print set, prints the GET rate. */
+    private static void run(BoardState board, int readers, int seconds, boolean print) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder gets = new LongAdder();
+        LongAdder writes = new LongAdder();
+        CountDownLatch done = new CountDownLatch(readers + 1);
+        for (int i = 0; i < readers; i++) {
+            int seed = i;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                long n = 0;
+                while (!stop.get()) {
+                    switch ((int) (n % 3)) {
+                        case 0:
+                            board.getNotes(null, 0, 0, false, null);
+                            break;
+                        case 1:
+                            board.getNotes(COLORS[random.nextInt(COLORS.length)], 0, 0, false, null);
+                            break;
+                        default:
+                            board.getNotes(null, random.nextInt(BOARD_W), random.nextInt(BOARD_H), true, null);
+                            break;
+                    }
+                    n++;
+                }
+                gets.add(n);
+                done.countDown();
+            }).start();
+        }
+        new Thread(() -> {
+            Random random = new Random(-1);
+            while (!stop.get()) {
+                int x = random.nextInt(BOARD_W);
+                int y = random.nextInt(BOARD_H);
+                if (board.pin(x, y) == null) board.unpin(x, y);
+                writes.increment();
+            }
+            done.countDown();
+        }).start();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (!print) return;
+        System.out.printf("%2d readers: %,10.0f GET/s (%,.0f per reader), %,.0f writes/s%n",
+                readers, gets.sum() / elapsed, gets.sum() / elapsed / readers, writes.sum() / elapsed);
+    }
+}
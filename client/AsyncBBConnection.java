@@ -0,0 +1,160 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of BBConnection. Commands are written immediately and their
+ * responses are completed later by a single reader thread, so any number of callers
+ * (including the Swing EDT) can share one connection without waiting on a round trip.
+ *
+ * <p>The server answers commands strictly in order, one block ending in OK or ERROR per
+ * non-blank command or BATCH envelope, so requests wait in a FIFO in-flight queue and each completed block
+ * goes to the oldest request. The reader thread takes requests from a concurrent queue and
+ * never waits for a sender, so a sender blocked on a full socket cannot stop the replies
+ * that would unblock it from being read. A request that times out keeps its place in the queue and
+ * its late response is discarded. When the connection drops, every outstanding and
+ * later request fails with the cause.
+ */
+public class AsyncBBConnection {
+    /** A sent command waiting for its response block. */
+    private static final class Pending {
+        final CompletableFuture<List<String>> future = new CompletableFuture<>();
+        final List<String> lines = new ArrayList<>();
+    }
+
+    private final long timeoutMillis;
+    private Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+    /** Requests in send order; appended under sendLock, so the order matches the writes. */
+    private final Queue<Pending> inFlight = new ConcurrentLinkedQueue<>();
+    /** Held while enqueuing and writing a command. The reader thread never takes it. */
+    private final Object sendLock = new Object();
+    /** Why the connection is unusable, or null while it is open. Set under this. */
+    private volatile IOException failure;
+    private CompletableFuture<List<String>> initLines;
+
+    /**
+     * Creates a connection whose commands fail with a TimeoutException if no response
+     * arrives within timeoutMillis.
+     */
+    public AsyncBBConnection(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void connect(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+        // The server's greeting ends in OK like a response, so it is the first request in flight.
+        Pending greeting = new Pending();
+        inFlight.add(greeting);
+        initLines = greeting.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Thread reader = new Thread(this::readLoop, "bbclient-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns the initialization block the server sends on connect.
+     */
+    public CompletableFuture<List<String>> getInitLines() {
+        return initLines;
+    }
+
+    /**
+     * Sends command and returns its response lines, the last being the OK or ERROR line.
+     * Blank commands are not sent, since the server does not answer them, and complete
+     * with an empty response. A BATCH envelope is answered once, at its END, so it must be
+     * sent with sendBatch; a command opening one completes with IllegalArgumentException.
+     */
+    public CompletableFuture<List<String>> sendCommand(String command) {
+        if (command.trim().isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        if (BBConnection.isBatchStart(command)) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("BATCH envelopes must be sent with sendBatch"));
+        }
+        return send(List.of(command));
+    }
+
+    /**
+     * Sends the commands as one BATCH ... END envelope and returns its single response: an
+     * ITEM line per failed command, then OK or ERROR. Blank commands are skipped.
+     */
+    public CompletableFuture<List<String>> sendBatch(List<String> commands, boolean atomic) {
+        List<String> lines = new ArrayList<>(commands.size() + 2);
+        lines.add(atomic ? "BATCH ATOMIC" : "BATCH");
+        for (String command : commands) {
+            if (!command.trim().isEmpty()) lines.add(command);
+        }
+        lines.add("END");
+        return send(lines);
+    }
+
+    /** Writes lines, which the server answers with exactly one response, as one request. */
+    private CompletableFuture<List<String>> send(List<String> lines) {
+        Pending p = new Pending();
+        synchronized (sendLock) {
+            if (failure != null) {
+                p.future.completeExceptionally(failure);
+                return p.future;
+            }
+            inFlight.add(p);
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.flush();
+            if (out.checkError()) {
+                fail(new IOException("Failed to send command"));
+            } else if (failure != null) {
+                fail(failure); // failed while p was being queued, so the drain may have missed it
+            }
+        }
+        return p.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the connection. Requests still waiting for a response fail.
+     */
+    public void disconnect() throws IOException {
+        fail(new IOException("Connection closed"));
+        if (socket != null) socket.close();
+    }
+
+    private void readLoop() {
+        IOException cause;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Pending p = inFlight.peek();
+                if (p == null) continue; // nothing was asked for; ignore
+                p.lines.add(line);
+                if (line.startsWith("OK") || line.startsWith("ERROR")) {
+                    inFlight.poll();
+                    p.future.complete(p.lines);
+                }
+            }
+            cause = new EOFException("Connection closed by server");
+        } catch (IOException e) {
+            cause = e;
+        }
+        fail(cause);
+    }
+
+    /** Marks the connection unusable and fails every outstanding request. */
+    private synchronized void fail(IOException cause) {
+        if (failure == null) failure = cause;
+        Pending p;
+        while ((p = inFlight.poll()) != null) {
+            p.future.completeExceptionally(failure);
+        }
+    }
+}
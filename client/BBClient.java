@@ -1,7 +1,11 @@
 import java.io.*;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BBClient {
+    /** Commands read from a file or pipe and pipelined together. */
+    private static final int BATCH = 256;
+
     private final String host;
     private final int port;
 
@@ -11,36 +15,102 @@ public class BBClient {
     }
 
     public void run() {
+        BBConnection connection = new BBConnection();
         try (
-            Socket socket = new Socket(host, port);
-            BufferedReader serverIn =
-                new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter serverOut =
-                new PrintWriter(socket.getOutputStream(), true);
             BufferedReader userIn =
                 new BufferedReader(new InputStreamReader(System.in))
         ) {
+            connection.connect(host, port);
             System.out.println("Connected to " + host + ":" + port);
+            print(connection.getInitLines());
 
-            String line;
-            while ((line = userIn.readLine()) != null) {
-                serverOut.println(line);
-
-                // IMPORTANT: protocol guarantees exactly one response per command
-                String response;
-                while ((response = serverIn.readLine()) != null) {
-                    System.out.println(response);
-                    if (response.startsWith("OK") || response.startsWith("ERROR")) {
-                        break;
-                    }
-                }
-
-                if (line.equalsIgnoreCase("DISCONNECT")) {
-                    break;
-                }
+            // Input from a file or pipe has nobody waiting on each reply, so pipeline it. Since
+            // JDK 22 System.console() is non-null even then, so ask whether it is a terminal.
+            Console console = System.console();
+            if (console == null || !console.isTerminal()) {
+                runPipelined(connection, userIn);
+            } else {
+                runInteractive(connection, userIn);
             }
         } catch (IOException e) {
             System.out.println("Client error: " + e.getMessage());
+        } finally {
+            try {
+                connection.disconnect();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void runInteractive(BBConnection connection, BufferedReader userIn) throws IOException {
+        String line;
+        while ((line = userIn.readLine()) != null) {
+            // The server ignores blank lines and sends nothing back
+            if (line.trim().isEmpty()) continue;
+
+            // A BATCH ... END envelope is answered once, at END, so it is sent as a whole
+            if (BBConnection.isBatchStart(line)) {
+                sendBatch(connection, line, userIn);
+                continue;
+            }
+
+            // IMPORTANT: protocol guarantees exactly one response per command
+            print(connection.sendCommand(line));
+
+            if (isDisconnect(line)) {
+                break;
+            }
+        }
+    }
+
+    private void runPipelined(BBConnection connection, BufferedReader userIn) throws IOException {
+        List<String> batch = new ArrayList<>(BATCH);
+        String line;
+        while ((line = userIn.readLine()) != null) {
+            if (BBConnection.isBatchStart(line)) {
+                // Replies stay in input order: send what came before the envelope first.
+                sendPipelined(connection, batch);
+                sendBatch(connection, line, userIn);
+                continue;
+            }
+            batch.add(line);
+            if (isDisconnect(line)) break;
+            if (batch.size() == BATCH) sendPipelined(connection, batch);
+        }
+        sendPipelined(connection, batch);
+    }
+
+    private static void sendPipelined(BBConnection connection, List<String> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        for (List<String> response : connection.sendPipelined(batch)) {
+            print(response);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Reads the commands of the envelope opened by start up to its END line and sends them
+     * as one batch, printing the single response.
+     */
+    private static void sendBatch(BBConnection connection, String start, BufferedReader userIn) throws IOException {
+        List<String> commands = new ArrayList<>();
+        String line;
+        while ((line = userIn.readLine()) != null && !BBConnection.isBatchEnd(line)) {
+            commands.add(line);
+        }
+        if (line == null) {
+            System.out.println("Batch not sent: input ended before END");
+            return;
+        }
+        print(connection.sendBatch(commands, start.trim().toUpperCase().endsWith("ATOMIC")));
+    }
+
+    private static boolean isDisconnect(String line) {
+        return line.trim().equalsIgnoreCase("DISCONNECT");
+    }
+
+    private static void print(List<String> lines) {
+        for (String l : lines) {
+            System.out.println(l);
         }
     }
 }
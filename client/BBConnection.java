@@ -4,34 +4,153 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class BBConnection {
+    /**
+     * Most commands sent ahead of their responses. Bounds what both sides buffer, so neither
+     * can block writing while the other is blocked writing too.
+     */
+    private static final int PIPELINE_WINDOW = 64;
+
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    private List<String> initLines = new ArrayList<>();
 
     public void connect(String host, int port) throws IOException {
         socket = new Socket(host, port);
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+        // The server opens with BOARD/NOTE/COLORS ending in OK; consume it so replies line up.
+        initLines = readResponse();
     }
 
-    public List<String> sendCommand(String command) throws IOException {
-        List<String> response = new ArrayList<>();
+    /**
+     * Returns the initialization block the server sent on connect.
+     */
+    public List<String> getInitLines() {
+        return initLines;
+    }
 
+    /**
+     * Switches the connection to the named board with USE and returns the response. On
+     * success it is the board's BOARD/NOTE/COLORS block, which becomes the init lines.
+     */
+    public List<String> use(String board) throws IOException {
+        List<String> response = sendCommand("USE " + board);
+        if (!response.isEmpty() && response.get(response.size() - 1).startsWith("OK")) {
+            initLines = response;
+        }
+        return response;
+    }
+
+    /**
+     * Sends command and returns its response, ending in OK or ERROR.
+     *
+     * @throws IllegalArgumentException if command opens a BATCH envelope; use sendBatch
+     */
+    public List<String> sendCommand(String command) throws IOException {
+        if (isBatchStart(command)) {
+            throw new IllegalArgumentException("BATCH envelopes must be sent with sendBatch");
+        }
         out.println(command);
+        out.flush();
+        return readResponse();
+    }
 
+    /**
+     * Sends the commands back to back and returns their responses in the same order. The
+     * server answers every non-blank command with exactly one block ending in OK or ERROR,
+     * so responses are matched by position. Blank commands are not sent and get an empty
+     * response, as do commands left unanswered because the server closed the connection
+     * (for example after DISCONNECT). A BATCH envelope is answered once, at its END, rather
+     * than per line, so it cannot be pipelined: send it with sendBatch instead.
+     *
+     * @throws IllegalArgumentException if a command opens a BATCH envelope
+     */
+    public List<List<String>> sendPipelined(List<String> commands) throws IOException {
+        for (String command : commands) {
+            if (isBatchStart(command)) {
+                throw new IllegalArgumentException("BATCH envelopes must be sent with sendBatch");
+            }
+        }
+        List<List<String>> responses = new ArrayList<>(commands.size());
+        // Indexes of the sent commands, in order; responses[pending.get(i)] is filled by the i-th reply.
+        List<Integer> pending = new ArrayList<>();
+        int received = 0;
+        boolean closed = false;
+        for (int i = 0; i < commands.size(); i++) {
+            responses.add(new ArrayList<>());
+            String command = commands.get(i);
+            if (command.trim().isEmpty()) continue;
+            if (pending.size() - received == PIPELINE_WINDOW) {
+                out.flush();
+                closed = !readResponse(responses.get(pending.get(received++)));
+            }
+            if (closed) break;
+            out.println(command);
+            pending.add(i);
+        }
+        out.flush();
+        while (!closed && received < pending.size()) {
+            closed = !readResponse(responses.get(pending.get(received++)));
+        }
+        while (responses.size() < commands.size()) {
+            responses.add(new ArrayList<>());
+        }
+        return responses;
+    }
+
+    /**
+     * Sends the commands as one BATCH ... END envelope and returns the single response: an
+     * ITEM line per failed command, then OK or ERROR. With atomic set, nothing is applied
+     * unless every command succeeds. Blank commands are skipped.
+     */
+    public List<String> sendBatch(List<String> commands, boolean atomic) throws IOException {
+        out.println(atomic ? "BATCH ATOMIC" : "BATCH");
+        for (String command : commands) {
+            if (!command.trim().isEmpty()) out.println(command);
+        }
+        out.println("END");
+        out.flush();
+        return readResponse();
+    }
+
+    /**
+     * Returns true if command opens a BATCH envelope (BATCH or BATCH ATOMIC), after which the
+     * server answers nothing until the END line.
+     */
+    public static boolean isBatchStart(String command) {
+        String[] words = command.trim().split("\\s+");
+        return words[0].equalsIgnoreCase("BATCH")
+                && (words.length == 1 || words.length == 2 && words[1].equalsIgnoreCase("ATOMIC"));
+    }
+
+    /** Returns true if line closes a BATCH envelope. */
+    public static boolean isBatchEnd(String line) {
+        return line.trim().equalsIgnoreCase("END");
+    }
+
+    private List<String> readResponse() throws IOException {
+        List<String> response = new ArrayList<>();
+        readResponse(response);
+        return response;
+    }
+
+    /**
+     * Reads lines into response up to and including the terminal OK or ERROR line.
+     * Returns false if the connection closed first.
+     */
+    private boolean readResponse(List<String> response) throws IOException {
         String line;
         while ((line = in.readLine()) != null) {
             response.add(line);
             if (line.startsWith("OK") || line.startsWith("ERROR")) {
-                break;
+                return true;
             }
         }
-
-        return response;
+        return false;
     }
 
     public void disconnect() throws IOException {
         if (socket != null) socket.close();
     }
 }
-
@@ -5,9 +5,14 @@ import java.util.List;
 import javax.swing.*;
 
 public class BoardPanel extends JPanel {
+    /** Returned by applyChanges after EVENT RESYNC: the caller must fetch the whole board. */
+    public static final long RESYNC_NEEDED = -2;
+
     private int noteW = 60;     // temporary until handshake
     private int noteH = 40;
     private final List<Note> notes = new ArrayList<>();
+    /** One entry per pin, as on the server, so a note that arrives later is pinned correctly. */
+    private final ArrayList<Point> pins = new ArrayList<>();
 
     public BoardPanel() {
         setBackground(Color.WHITE); // board background is plain
@@ -21,20 +26,94 @@ public class BoardPanel extends JPanel {
 
     public void setNotes(List<Note> newNotes) {
         notes.clear();
-        notes.addAll(newNotes);
+        for (Note n : newNotes) {
+            addNote(n);
+        }
         repaint();
     }
 
     public void addMockNote(Note n) {
-        notes.add(n);
+        addNote(n);
         repaint();
     }
 
+    /** Removes every note and pin, as CLEAR does on the server. */
     public void clearNotes() {
         notes.clear();
+        pins.clear();
         repaint();
     }
 
+    /**
+     * Applies a GET SINCE response (or pushed EVENT lines) to the notes shown and returns the
+     * board version it brings the panel to, or -1 if the lines carry no version. After RESYNC
+     * the notes are replaced by the NOTE and PIN lines that follow. Returns RESYNC_NEEDED,
+     * leaving the rest unapplied, at an EVENT RESYNC, which means pushed events were lost.
+     */
+    public long applyChanges(List<String> lines) {
+        long version = -1;
+        for (String line : lines) {
+            String[] p = line.split(" ", 7);
+            switch (p[0]) {
+                case "VERSION":
+                    version = Long.parseLong(p[1]);
+                    break;
+                case "RESYNC":
+                    notes.clear();
+                    pins.clear();
+                    break;
+                case "NOTE":
+                    addNote(new Note(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], line.split(" ", 5)[4]));
+                    break;
+                case "PIN":
+                    pinAt(Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+                    break;
+                case "EVENT":
+                    if (p[1].equals("RESYNC")) {
+                        repaint();
+                        return RESYNC_NEEDED;
+                    }
+                    applyEvent(p);
+                    version = Math.max(version, Long.parseLong(p[1]));
+                    break;
+            }
+        }
+        repaint();
+        return version;
+    }
+
+    /** Applies one "EVENT <version> <type> ..." line, already split into at most 7 parts. */
+    private void applyEvent(String[] p) {
+        switch (p[2]) {
+            case "POST":
+                addNote(new Note(Integer.parseInt(p[3]), Integer.parseInt(p[4]), p[5], p.length > 6 ? p[6] : ""));
+                break;
+            case "PIN":
+                pinAt(Integer.parseInt(p[3]), Integer.parseInt(p[4]));
+                break;
+            case "UNPIN":
+                unpinAt(Integer.parseInt(p[3]), Integer.parseInt(p[4]));
+                break;
+            case "REMOVE":
+                int x = Integer.parseInt(p[3]);
+                int y = Integer.parseInt(p[4]);
+                notes.removeIf(n -> n.x == x && n.y == y);
+                break;
+            case "CLEAR":
+                notes.clear();
+                pins.clear();
+                break;
+        }
+    }
+
+    /** Adds n, pinned by every pin already inside it, as the server pins a new note. */
+    private void addNote(Note n) {
+        for (Point pin : pins) {
+            if (containsPoint(n, pin.x, pin.y)) n.addPin();
+        }
+        notes.add(n);
+    }
+
 
     @Override
     protected void paintComponent(Graphics g) {
@@ -107,21 +186,25 @@ public class BoardPanel extends JPanel {
 
             }
             }
-            if (hit) repaint();
+            if (hit) {
+                pins.add(new Point(px, py));
+                repaint();
+            }
             return hit;
         }
 
+    /** Removes one pin at exactly (px, py), unpinning it from every note it lies in. */
     public boolean unpinAt(int px, int py){
 
-        boolean removedAny = false;
+        if (!pins.remove(new Point(px, py))) return false;
         for (Note n : notes) {
 
             if (containsPoint(n, px, py)){
-                if (n.removePin()) removedAny = true;
+                n.removePin();
             }
         }
-        if (removedAny) repaint();
-        return removedAny;
+        repaint();
+        return true;
     }
 
     public void shake(){
@@ -134,9 +217,10 @@ public class BoardPanel extends JPanel {
         repaint();
     }
 
+    // Same bounds as the server's Note.contains, so pinned state matches the server's.
     private boolean containsPoint(Note n, int px, int py){
-        return (px >= n.x && px <= n.x + noteW &&
-                py >= n.y && py <= n.y + noteH);
+        return (px >= n.x && px < n.x + noteW &&
+                py >= n.y && py < n.y + noteH);
     }
 }
 
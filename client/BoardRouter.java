@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Spreads named boards over a cluster of BBoard servers with consistent hashing. Every server
+ * is placed on a hash ring at VIRTUAL_NODES points and a board belongs to the first point at or
+ * after the hash of its name, so adding or removing one of N servers moves only the boards on
+ * the arcs it gains or loses, about 1/N of them, and every other board keeps its server.
+ *
+ * <p>Each server must be started with the same --board list; a board's notes live only on the
+ * server that owns it. Commands for a board go over its own BBConnection, opened on first use
+ * and switched to the board with USE. addServer and removeServer copy each moved board to its
+ * new owner; they are not safe against writes made through other routers meanwhile.
+ */
+public class BoardRouter {
+    /** Ring points per server; more points spread boards more evenly. */
+    private static final int VIRTUAL_NODES = 160;
+    /** Most commands sent in one BATCH when a board is copied, below the server's limit. */
+    private static final int COPY_BATCH = 10_000;
+
+    /** Ring point hash to "host:port". */
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> servers = new LinkedHashSet<>();
+    /** Open connections by board name, each already switched to its board. */
+    private final Map<String, BBConnection> connections = new HashMap<>();
+
+    /** Creates a router over servers given as "host:port". */
+    public BoardRouter(Collection<String> servers) {
+        for (String server : servers) {
+            place(server);
+        }
+    }
+
+    /** Returns the "host:port" of the server that owns board. */
+    public synchronized String serverFor(String board) {
+        if (ring.isEmpty()) throw new IllegalStateException("no servers");
+        SortedMap<Long, String> tail = ring.tailMap(hash(board));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    public synchronized Set<String> getServers() {
+        return new LinkedHashSet<>(servers);
+    }
+
+    /**
+     * Returns the connection for board, connecting to its server and sending USE on first use.
+     */
+    public synchronized BBConnection connection(String board) throws IOException {
+        BBConnection c = connections.get(board);
+        if (c == null) {
+            c = open(serverFor(board), board);
+            connections.put(board, c);
+        }
+        return c;
+    }
+
+    /** Sends command to the server that owns board and returns its response. */
+    public List<String> sendCommand(String board, String command) throws IOException {
+        BBConnection c = connection(board);
+        synchronized (c) {
+            return c.sendCommand(command);
+        }
+    }
+
+    /**
+     * Adds server to the ring and copies each of boards that it now owns from its previous
+     * server. Returns the boards that moved.
+     */
+    public synchronized List<String> addServer(String server, Collection<String> boards) throws IOException {
+        Map<String, String> before = owners(boards);
+        place(server);
+        return migrate(before, boards);
+    }
+
+    /**
+     * Removes server from the ring and copies each of boards it owned to its new server.
+     * Returns the boards that moved.
+     */
+    public synchronized List<String> removeServer(String server, Collection<String> boards) throws IOException {
+        Map<String, String> before = owners(boards);
+        servers.remove(server);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.remove(hash(server + "#" + i));
+        }
+        return migrate(before, boards);
+    }
+
+    /** Closes every open connection. */
+    public synchronized void disconnect() throws IOException {
+        for (BBConnection c : connections.values()) {
+            c.disconnect();
+        }
+        connections.clear();
+    }
+
+    private void place(String server) {
+        if (!servers.add(server)) return;
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(server + "#" + i), server);
+        }
+    }
+
+    private Map<String, String> owners(Collection<String> boards) {
+        Map<String, String> owners = new HashMap<>();
+        for (String board : boards) {
+            owners.put(board, serverFor(board));
+        }
+        return owners;
+    }
+
+    /** Copies every board whose owner differs from before, then clears it on its old server. */
+    private List<String> migrate(Map<String, String> before, Collection<String> boards) throws IOException {
+        List<String> moved = new ArrayList<>();
+        for (String board : boards) {
+            String from = before.get(board);
+            String to = serverFor(board);
+            if (from.equals(to)) continue;
+            BBConnection old = connections.remove(board);
+            if (old != null) old.disconnect();
+            BBConnection source = open(from, board);
+            try {
+                copy(source, connection(board), board);
+                List<String> cleared = source.sendCommand("CLEAR");
+                check(cleared, "clearing " + board + " on " + from);
+            } finally {
+                source.disconnect();
+            }
+            moved.add(board);
+        }
+        return moved;
+    }
+
+    /**
+     * Copies the notes and then the pins of board from source to target, which should be
+     * empty, in atomic batches of at most COPY_BATCH commands.
+     */
+    private static void copy(BBConnection source, BBConnection target, String board) throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String line : check(source.sendCommand("GET"), "reading " + board)) {
+            if (line.startsWith("NOTE ")) commands.add("POST " + line.substring("NOTE ".length()));
+        }
+        for (String line : check(source.sendCommand("GET PINS"), "reading pins of " + board)) {
+            if (line.startsWith("PIN ")) commands.add(line);
+        }
+        for (int i = 0; i < commands.size(); i += COPY_BATCH) {
+            List<String> chunk = commands.subList(i, Math.min(commands.size(), i + COPY_BATCH));
+            check(target.sendBatch(chunk, true), "copying " + board);
+        }
+    }
+
+    /** Returns response, or throws if it does not end in OK. */
+    private static List<String> check(List<String> response, String what) throws IOException {
+        if (response.isEmpty() || !response.get(response.size() - 1).startsWith("OK")) {
+            throw new IOException("Failed " + what + ": " + (response.isEmpty() ? "connection closed"
+                    : response.get(response.size() - 1)));
+        }
+        return response;
+    }
+
+    /** Connects to server ("host:port") and switches the connection to board. */
+    private static BBConnection open(String server, String board) throws IOException {
+        int colon = server.lastIndexOf(':');
+        BBConnection c = new BBConnection();
+        c.connect(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        try {
+            check(c.use(board), "selecting " + board + " on " + server);
+        } catch (IOException e) {
+            c.disconnect();
+            throw e;
+        }
+        return c;
+    }
+
+    /** First 8 bytes of the MD5 of s, which spreads similar names evenly around the ring. */
+    private static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (d[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
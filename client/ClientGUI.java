@@ -1,8 +1,13 @@
 import java.awt.*;
+import java.io.IOException;
+import java.util.List;
 import javax.swing.*;
 
 public class ClientGUI {
     private BBConnection connection = new BBConnection();
+    private boolean connected;
+    /** Board version the panel shows, or -1 if it must be fetched from scratch. */
+    private long version = -1;
 
     private JTextField hostField = new JTextField("127.0.0.1");
     private JTextField portField = new JTextField("4554");
@@ -59,8 +64,10 @@ public class ClientGUI {
         clearBtn.addActionListener(e -> { //MAYBE CHANGE THIS TO FIT LIKE THE OTHERS
             String cmd = CommandBuilder.buildClear();
             outputArea.append("> " + cmd + "\n");
+            if (sendOnline(cmd)) return;
             boardPanel.clearNotes(); // offline effect
         });
+        getBtn.addActionListener(e -> refresh());
         postBtn.addActionListener(e -> doPost());
         pinBtn.addActionListener(e -> doPin());
         unpinBtn.addActionListener(e -> doUnpin());
@@ -76,7 +83,16 @@ public class ClientGUI {
                 hostField.getText(),
                 Integer.parseInt(portField.getText())
             );
+            connected = true;
+            version = -1;
+            for (String line : connection.getInitLines()) {
+                String[] p = line.split(" ");
+                if (p[0].equals("NOTE") && p.length == 3) {
+                    boardPanel.setNoteSize(Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+                }
+            }
             outputArea.append("Connected to server\n");
+            refresh();
         } catch (Exception ex) {
             outputArea.append("Connection failed: " + ex.getMessage() + "\n");
         }
@@ -84,6 +100,7 @@ public class ClientGUI {
 
     private void disconnect() {
         try {
+            connected = false;
             connection.disconnect();
             outputArea.append("Disconnected\n");
         } catch (Exception ex) {
@@ -117,6 +134,8 @@ public class ClientGUI {
         String cmd = CommandBuilder.buildPost(x, y, color.trim(), msg.trim());
         outputArea.append("> " + cmd + "\n");
 
+        if (sendOnline(cmd)) return;
+
         // OFFLINE behavior: add the note locally
         boardPanel.addMockNote(new Note(x, y, color.trim(), msg.trim()));
 
@@ -137,6 +156,7 @@ public class ClientGUI {
 
             String cmd = CommandBuilder.buildPin(x, y);
             outputArea.append("> " + cmd + "\n");
+            if (sendOnline(cmd)) return;
 
             boolean ok = boardPanel.pinAt(x, y);
             if (!ok) outputArea.append("(offline) ERROR NO_NOTE_AT_COORDINATE\n");
@@ -158,6 +178,7 @@ public class ClientGUI {
 
             String cmd = CommandBuilder.buildUnpin(x, y);
             outputArea.append("> " + cmd + "\n");
+            if (sendOnline(cmd)) return;
 
             boolean ok = boardPanel.unpinAt(x, y);
             if (!ok) outputArea.append("(offline) ERROR PIN_NOT_FOUND\n");
@@ -170,8 +191,57 @@ public class ClientGUI {
     private void doShake() {
         String cmd = CommandBuilder.buildShake();
         outputArea.append("> " + cmd + "\n");
+        if (sendOnline(cmd)) return;
         boardPanel.shake();
     }
 
+    /**
+     * If connected, sends cmd, shows the reply and refreshes the board, returning true;
+     * otherwise returns false and the caller applies cmd to the panel offline.
+     */
+    private boolean sendOnline(String cmd) {
+        if (!connected) return false;
+        try {
+            for (String line : connection.sendCommand(cmd)) {
+                outputArea.append(line + "\n");
+            }
+            refresh();
+        } catch (IOException ex) {
+            outputArea.append("Send failed: " + ex.getMessage() + "\n");
+        }
+        return true;
+    }
+
+    /**
+     * Brings the panel up to the server's board with GET SINCE, so only the changes since the
+     * version shown are transferred. The whole board is fetched only on first use, or when the
+     * server's change log no longer reaches back that far and it replies RESYNC.
+     */
+    private void refresh() {
+        if (!connected) {
+            outputArea.append("Not connected\n");
+            return;
+        }
+        try {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                if (version < 0) boardPanel.clearNotes();
+                List<String> response = connection.sendCommand("GET SINCE " + Math.max(version, 0));
+                String last = response.isEmpty() ? "ERROR connection closed" : response.get(response.size() - 1);
+                if (!last.startsWith("OK")) {
+                    outputArea.append(last + "\n");
+                    return;
+                }
+                long v = boardPanel.applyChanges(response);
+                if (v != BoardPanel.RESYNC_NEEDED) {
+                    if (v >= 0) version = v;
+                    return;
+                }
+                version = -1;
+            }
+        } catch (IOException ex) {
+            outputArea.append("Refresh failed: " + ex.getMessage() + "\n");
+        }
+    }
+
 
 }
\ No newline at end of file
@@ -1,18 +1,100 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bulletin Board Server (CP372 Assignment 01).
- * Usage: java BBoard <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>
+ * Usage: java BBoard [options] <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>
  * Example: java BBoard 4554 200 100 20 10 red white green yellow
+ *
+ * Options:
+ *   --nio              serve all clients from a few selector-based I/O threads instead of one thread per client
+ *   --io-threads=<n>   number of I/O threads for --nio (default: available processors)
+ *   --virtual-threads  run each client handler on its own virtual thread. An idle client then costs
+ *                      about 6.5 KB of heap, mostly its parked stack and buffers, and no OS thread
+ *   --wal=<file>       log every change to file and replay it at startup to restore the board
+ *   --fsync=<policy>   when logged changes are forced to disk: always (before replying, the default),
+ *                      interval (every --fsync-interval milliseconds, default 1000) or never.
+ *                      --nio requires interval or never, since its I/O threads must not wait for the disk
+ *   --snapshot=<file>  with --wal, periodically save the board to file so startup replays only the newer log
+ *   --snapshot-interval=<s>  seconds between snapshots (default 60)
+ *   --follow=<host>:<port>  replicate the boards of the server at host:port and serve them read-only
+ *   --board=<name>,<board_width>,<board_height>,<note_width>,<note_height>,<color1>,...,<colorN>
+ *                      also host the named board, selected by clients with USE <name>; repeatable.
+ *                      The positional arguments configure the board named "default". With --wal
+ *                      and --snapshot each named board keeps its files in <file>.boards/<name>/
  */
 public class BBoard {
+    private static final String USAGE = "Usage: java BBoard [--nio [--io-threads=<n>] | --virtual-threads] [--wal=<file> [--fsync=always|interval|never] [--fsync-interval=<ms>] [--snapshot=<file> [--snapshot-interval=<s>]] | --follow=<host>:<port>] [--board=<name>,<w>,<h>,<note_w>,<note_h>,<color1>,...]... <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>";
+
     public static void main(String[] args) {
+        boolean nio = false;
+        boolean virtualThreads = false;
+        int ioThreads = Runtime.getRuntime().availableProcessors();
+        String walPath = null;
+        WriteAheadLog.FsyncPolicy fsync = WriteAheadLog.FsyncPolicy.ALWAYS;
+        int fsyncInterval = 1000;
+        String snapshotPath = null;
+        int snapshotInterval = 60;
+        String follow = null;
+        List<String> boardSpecs = new ArrayList<>();
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--")) {
+            String opt = args[first++];
+            if (opt.equals("--nio")) {
+                nio = true;
+            } else if (opt.equals("--virtual-threads")) {
+                virtualThreads = true;
+            } else if (opt.startsWith("--io-threads=")) {
+                ioThreads = parseInt(opt.substring("--io-threads=".length()), "io-threads");
+            } else if (opt.startsWith("--wal=")) {
+                walPath = opt.substring("--wal=".length());
+            } else if (opt.startsWith("--fsync=")) {
+                String policy = opt.substring("--fsync=".length());
+                try {
+                    fsync = WriteAheadLog.FsyncPolicy.valueOf(policy.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: invalid fsync policy '" + policy + "'");
+                    System.exit(1);
+                }
+            } else if (opt.startsWith("--fsync-interval=")) {
+                fsyncInterval = parseInt(opt.substring("--fsync-interval=".length()), "fsync-interval");
+            } else if (opt.startsWith("--snapshot=")) {
+                snapshotPath = opt.substring("--snapshot=".length());
+            } else if (opt.startsWith("--snapshot-interval=")) {
+                snapshotInterval = parseInt(opt.substring("--snapshot-interval=".length()), "snapshot-interval");
+            } else if (opt.startsWith("--follow=")) {
+                follow = opt.substring("--follow=".length());
+            } else if (opt.startsWith("--board=")) {
+                boardSpecs.add(opt.substring("--board=".length()));
+            } else {
+                System.err.println("Error: unknown option '" + opt + "'");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+        }
+        args = Arrays.copyOfRange(args, first, args.length);
+        if (nio && virtualThreads) {
+            System.err.println("Error: --nio and --virtual-threads cannot be combined");
+            System.exit(1);
+        }
+
         if (args.length < 6) {
-            System.err.println("Usage: java BBoard <port> <board_width> <board_height> <note_width> <note_height> <color1> ... <colorN>");
+            System.err.println(USAGE);
             System.exit(1);
         }
 
@@ -26,33 +108,154 @@ public class BBoard {
             System.err.println("Error: port must be between 1 and 65535");
             System.exit(1);
         }
-        if (boardW <= 0 || boardH <= 0 || noteW <= 0 || noteH <= 0) {
-            System.err.println("Error: dimensions must be positive");
+        if (ioThreads <= 0) {
+            System.err.println("Error: io-threads must be positive");
             System.exit(1);
         }
-        if (noteW > boardW || noteH > boardH) {
-            System.err.println("Error: note dimensions cannot exceed board dimensions");
+        if (fsyncInterval <= 0) {
+            System.err.println("Error: fsync-interval must be positive");
+            System.exit(1);
+        }
+        if (snapshotInterval <= 0) {
+            System.err.println("Error: snapshot-interval must be positive");
             System.exit(1);
         }
+        if (snapshotPath != null && walPath == null) {
+            System.err.println("Error: --snapshot requires --wal");
+            System.exit(1);
+        }
+        if (nio && walPath != null && fsync == WriteAheadLog.FsyncPolicy.ALWAYS) {
+            // Each write would wait for its fsync on an I/O thread, stalling every connection of
+            // that loop, and commands of one loop run in turn, so they could never share a flush.
+            System.err.println("Error: --nio cannot wait for --fsync=always; use --fsync=interval or never, or a threaded mode");
+            System.exit(1);
+        }
+        if (follow != null && walPath != null) {
+            // A follower's changes come from its leader, which keeps the log.
+            System.err.println("Error: --follow and --wal cannot be combined");
+            System.exit(1);
+        }
+        String leaderHost = null;
+        int leaderPort = 0;
+        if (follow != null) {
+            int colon = follow.lastIndexOf(':');
+            if (colon <= 0) {
+                System.err.println("Error: --follow expects <host>:<port>");
+                System.exit(1);
+            }
+            leaderHost = follow.substring(0, colon);
+            leaderPort = parseInt(follow.substring(colon + 1), "leader port");
+        }
 
         Set<String> colors = new HashSet<>();
         for (int i = 5; i < args.length; i++) {
             colors.add(args[i].trim());
         }
-        if (colors.isEmpty()) {
-            System.err.println("Error: at least one color is required");
-            System.exit(1);
+        Map<String, BoardState> named = new LinkedHashMap<>();
+        named.put(Boards.DEFAULT, newBoard(Boards.DEFAULT, boardW, boardH, noteW, noteH, colors));
+        for (String spec : boardSpecs) {
+            String[] parts = spec.split(",");
+            if (parts.length < 6) {
+                System.err.println("Error: --board expects <name>,<board_width>,<board_height>,<note_width>,<note_height>,<color1>,...");
+                System.exit(1);
+            }
+            String name = parts[0].trim();
+            if (!Boards.isValidName(name) || named.containsKey(name)) {
+                System.err.println("Error: invalid or duplicate board name '" + name + "'");
+                System.exit(1);
+            }
+            Set<String> boardColors = new HashSet<>();
+            for (int i = 5; i < parts.length; i++) {
+                boardColors.add(parts[i].trim());
+            }
+            named.put(name, newBoard(name, parseInt(parts[1], "board_width"), parseInt(parts[2], "board_height"),
+                    parseInt(parts[3], "note_width"), parseInt(parts[4], "note_height"), boardColors));
         }
+        Boards boards = new Boards(named);
 
-        BoardState board = new BoardState(boardW, boardH, noteW, noteH, colors);
+        if (walPath != null) {
+            List<WriteAheadLog> logs = new ArrayList<>();
+            for (String name : boards.names()) {
+                BoardState board = boards.get(name);
+                try {
+                    Path boardWal = boardFile(walPath, name);
+                    Path boardSnapshot = snapshotPath == null ? null : boardFile(snapshotPath, name);
+                    long start = System.nanoTime();
+                    logs.add(WriteAheadLog.open(boardWal, boardSnapshot, board, fsync, fsyncInterval));
+                    System.out.println("Restored version " + board.snapshot().getVersion() + " from " + boardWal
+                            + (boardSnapshot == null ? "" : " and " + boardSnapshot)
+                            + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                } catch (IOException e) {
+                    System.err.println("Error: cannot restore board " + name + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            if (snapshotPath != null) {
+                ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "bboard-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                });
+                checkpoints.scheduleWithFixedDelay(() -> {
+                    for (WriteAheadLog log : logs) {
+                        try {
+                            log.checkpoint();
+                        } catch (IOException e) {
+                            System.err.println("Snapshot failed: " + e.getMessage());
+                        }
+                    }
+                }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+            }
+            // Write out what the interval and never policies still buffer when the server is stopped.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (WriteAheadLog log : logs) {
+                    try {
+                        log.close();
+                    } catch (IOException ignored) {}
+                }
+            }));
+        }
+
+        if (follow != null) {
+            // One stream per board; the leader must host boards of the same names and shapes.
+            for (String name : boards.names()) {
+                BoardState board = boards.get(name);
+                board.setLeader(follow);
+                Thread follower = new Thread(new Follower(leaderHost, leaderPort,
+                        name.equals(Boards.DEFAULT) ? null : name, board), "bboard-follower");
+                follower.setDaemon(true);
+                follower.start();
+            }
+        }
+
+        if (nio) {
+            try {
+                System.out.println("Bulletin Board server listening on port " + port + " (" + ioThreads + " I/O threads)");
+                printBoards(boards);
+                new NioServer(port, boards, ioThreads).serve();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Bulletin Board server listening on port " + port);
-            System.out.println("Board: " + boardW + "x" + boardH + ", Note: " + noteW + "x" + noteH + ", Colors: " + colors);
+            printBoards(boards);
 
+            if (virtualThreads) {
+                // BoardState locks are java.util.concurrent locks, so blocked handlers unmount from their carriers.
+                ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+                while (true) {
+                    Socket clientSocket = serverSocket.accept();
+                    executor.execute(new ClientHandler(clientSocket, boards, ClientHandler.SMALL_BUFFER,
+                            Thread.ofVirtual().name("bboard-push").factory()));
+                }
+            }
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket, board);
+                ClientHandler handler = new ClientHandler(clientSocket, boards);
                 Thread t = new Thread(handler);
                 t.setDaemon(false);
                 t.start();
@@ -63,6 +266,49 @@ public class BBoard {
         }
     }
 
+    /**
+     * Creates the board called name, or exits with an error if its dimensions or colours are invalid.
+     */
+    private static BoardState newBoard(String name, int boardW, int boardH, int noteW, int noteH, Set<String> colors) {
+        String of = name.equals(Boards.DEFAULT) ? "" : " (board " + name + ")";
+        if (boardW <= 0 || boardH <= 0 || noteW <= 0 || noteH <= 0) {
+            System.err.println("Error: dimensions must be positive" + of);
+            System.exit(1);
+        }
+        if (noteW > boardW || noteH > boardH) {
+            System.err.println("Error: note dimensions cannot exceed board dimensions" + of);
+            System.exit(1);
+        }
+        if (colors.isEmpty()) {
+            System.err.println("Error: at least one color is required" + of);
+            System.exit(1);
+        }
+        return new BoardState(boardW, boardH, noteW, noteH, colors);
+    }
+
+    /**
+     * Returns where the board called name keeps the file configured as path. The default board
+     * uses path itself, so single-board setups are unchanged. Every other board gets its own
+     * directory, <path>.boards/<name>/, holding a file with path's name, so neither the board
+     * files nor the .old and .tmp files derived from them can collide.
+     */
+    private static Path boardFile(String path, String name) throws IOException {
+        Path file = Paths.get(path);
+        if (name.equals(Boards.DEFAULT)) return file;
+        Path dir = file.resolveSibling(file.getFileName() + ".boards").resolve(name);
+        Files.createDirectories(dir);
+        return dir.resolve(file.getFileName());
+    }
+
+    private static void printBoards(Boards boards) {
+        for (String name : boards.names()) {
+            BoardState b = boards.get(name);
+            System.out.println((name.equals(Boards.DEFAULT) ? "Board: " : "Board " + name + ": ")
+                    + b.getBoardW() + "x" + b.getBoardH() + ", Note: " + b.getNoteW() + "x" + b.getNoteH()
+                    + ", Colors: " + b.getValidColors());
+        }
+    }
+
     private static int parseInt(String s, String name) {
         try {
             return Integer.parseInt(s.trim());
@@ -0,0 +1,33 @@
+/**
+ * One POST, PIN or UNPIN of a BATCH, parsed but not yet applied.
+ */
+final class BatchItem {
+    enum Type { POST, PIN, UNPIN }
+
+    final Type type;
+    final int x;
+    final int y;
+    /** Note colour and message, for POST. */
+    final String color;
+    final String message;
+
+    private BatchItem(Type type, int x, int y, String color, String message) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.color = color;
+        this.message = message;
+    }
+
+    static BatchItem post(int x, int y, String color, String message) {
+        return new BatchItem(Type.POST, x, y, color, message);
+    }
+
+    static BatchItem pin(int x, int y) {
+        return new BatchItem(Type.PIN, x, y, null, null);
+    }
+
+    static BatchItem unpin(int x, int y) {
+        return new BatchItem(Type.UNPIN, x, y, null, null);
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.List;
+
+/**
+ * One change to the board, as delivered to subscribers. Each event carries the version of
+ * the snapshot published with it, so events are totally ordered. A RESET is delivered, but
+ * not logged, when the whole board is replaced without a history of changes.
+ */
+final class BoardEvent {
+    enum Type { POST, PIN, UNPIN, SHAKE, CLEAR, BATCH, RESET }
+
+    final Type type;
+    final long version;
+    /** The posted note, for POST. */
+    final Note note;
+    /** The pin coordinate, for PIN and UNPIN. */
+    final int x;
+    final int y;
+    /** The notes removed, for SHAKE. */
+    final List<Note> removed;
+    /** The changes a BATCH applied, in order, all with the batch's version. */
+    final List<BoardEvent> items;
+
+    private BoardEvent(Type type, long version, Note note, int x, int y, List<Note> removed, List<BoardEvent> items) {
+        this.type = type;
+        this.version = version;
+        this.note = note;
+        this.x = x;
+        this.y = y;
+        this.removed = removed;
+        this.items = items;
+    }
+
+    static BoardEvent post(long version, Note note) {
+        return new BoardEvent(Type.POST, version, note, note.getX(), note.getY(), null, null);
+    }
+
+    static BoardEvent pin(long version, int x, int y) {
+        return new BoardEvent(Type.PIN, version, null, x, y, null, null);
+    }
+
+    static BoardEvent unpin(long version, int x, int y) {
+        return new BoardEvent(Type.UNPIN, version, null, x, y, null, null);
+    }
+
+    static BoardEvent shake(long version, List<Note> removed) {
+        return new BoardEvent(Type.SHAKE, version, null, 0, 0, removed, null);
+    }
+
+    static BoardEvent clear(long version) {
+        return new BoardEvent(Type.CLEAR, version, null, 0, 0, null, null);
+    }
+
+    static BoardEvent batch(long version, List<BoardEvent> items) {
+        return new BoardEvent(Type.BATCH, version, null, 0, 0, null, items);
+    }
+
+    static BoardEvent reset(long version) {
+        return new BoardEvent(Type.RESET, version, null, 0, 0, null, null);
+    }
+}
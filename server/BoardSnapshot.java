@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Immutable point-in-time view of the board, published by BoardState after every mutation.
+ * Queries run without any locking: the snapshot shares the append-only note indexes of its
+ * generation but only sees notes with seq below its limit, and holds its own PinMap.
+ */
+public final class BoardSnapshot {
+    private final long version;
+    private final long limit;
+    private final NoteIndex index;
+    private final PinMap pins;
+    private final int pinnedNotes;
+    private final Map<String, Integer> colorIds;
+
+    BoardSnapshot(long version, long limit, NoteIndex index, PinMap pins, int pinnedNotes, Map<String, Integer> colorIds) {
+        this.version = version;
+        this.limit = limit;
+        this.index = index;
+        this.pins = pins;
+        this.pinnedNotes = pinnedNotes;
+        this.colorIds = colorIds;
+    }
+
+    /**
+     * Returns the board version this snapshot reflects; it increases with every mutation.
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * Returns true if at least one note contains the point (px, py).
+     */
+    public boolean anyNoteContains(int px, int py) {
+        return index.grid.anyContains(px, py, limit);
+    }
+
+    /**
+     * Returns the seq the next posted note will get; every note in this snapshot has a lower one.
+     */
+    long getSeqLimit() { return limit; }
+
+    /**
+     * Returns the number of notes on the board.
+     */
+    public int getNoteCount() {
+        return index.all.countBelow(limit);
+    }
+
+    /**
+     * Returns the number of notes holding at least one pin.
+     */
+    public int getPinnedNoteCount() {
+        return pinnedNotes;
+    }
+
+    /**
+     * Returns the number of pins, counting duplicates.
+     */
+    public int getPinCount() {
+        return pins.size();
+    }
+
+    /**
+     * Returns the number of notes matching filter, as getNotes would return. Colour and
+     * whole-board counts come from the posting list sizes in O(log n); other filters count the
+     * candidates the matching index yields, without collecting them.
+     */
+    int countNotes(NoteFilter filter) {
+        if (!filter.isSpatial() && filter.refersTo == null) {
+            if (filter.color == null) return getNoteCount();
+            Integer id = colorIds.get(filter.color);
+            return id == null ? 0 : index.byColor[id].countBelow(limit);
+        }
+        int[] count = {0};
+        forEachNote(filter, -1, n -> {
+            count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    /**
+     * Passes each pinned coordinate, packed, with its number of pins to visitor.
+     */
+    void forEachPin(LongIntHashMap.EntryVisitor visitor) {
+        pins.forEach(visitor);
+    }
+
+    /**
+     * Returns a copy of all pins as [x,y] pairs, one entry per pin.
+     */
+    public List<int[]> getAllPins() {
+        List<int[]> result = new ArrayList<>(pins.size());
+        pins.forEach((key, count) -> {
+            for (int i = 0; i < count; i++) {
+                result.add(new int[]{Coords.x(key), Coords.y(key)});
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns notes matching all criteria. null color/contains/refersTo means "match all".
+     * Candidates come from the most selective index available: the spatial grid for contains or
+     * within, otherwise the smaller of the colour and trigram posting lists, and only as a last
+     * resort the full note list. Every candidate is still checked against all criteria.
+     */
+    public List<Note> getNotes(String colorFilter, int cx, int cy, boolean useContains, String refersTo) {
+        NoteFilter filter = new NoteFilter();
+        filter.color = colorFilter;
+        filter.refersTo = refersTo;
+        filter.useContains = useContains;
+        filter.cx = cx;
+        filter.cy = cy;
+        List<Note> result = new ArrayList<>();
+        forEachNote(filter, -1, result::add);
+        return result;
+    }
+
+    /**
+     * Passes the notes matching filter whose seq is above after to visitor, in seq order,
+     * until the visitor returns false. Only contains= candidates, the few notes over one point,
+     * are gathered and sorted first. within= sweeps the grid's buckets by seq and other matches
+     * are streamed from a posting list, so neither memory nor the work of a page grows with them.
+     */
+    void forEachNote(NoteFilter filter, long after, Predicate<Note> visitor) {
+        int noteW = index.noteW;
+        int noteH = index.noteH;
+        if (filter.useContains) {
+            for (Note n : index.grid.containing(filter.cx, filter.cy, limit)) {
+                if (n.getSeq() > after && filter.matches(n, noteW, noteH) && !visitor.test(n)) return;
+            }
+            return;
+        }
+        if (filter.useWithin) {
+            index.grid.forEachWithin(filter.x1, filter.y1, filter.x2, filter.y2, after, limit,
+                    n -> !filter.matches(n, noteW, noteH) || visitor.test(n));
+            return;
+        }
+        NoteList candidates = index.all;
+        if (filter.color != null) {
+            Integer id = colorIds.get(filter.color);
+            if (id == null) return;
+            candidates = index.byColor[id];
+        }
+        if (filter.refersTo != null) {
+            NoteList byText = index.messages.candidates(filter.refersTo);
+            if (byText != null && byText.size() < candidates.size()) candidates = byText;
+        }
+        candidates.scan(after, limit, n -> !filter.matches(n, noteW, noteH) || visitor.test(n));
+    }
+}
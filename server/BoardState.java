@@ -1,23 +1,92 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Thread-safe shared state for the bulletin board: dimensions, notes, and pins.
- * All public methods are synchronized to ensure atomic operations under concurrency.
+ * Every mutation (post, pin, unpin, shake, clear) is atomic: it validates and applies its change
+ * while holding the locks of every board tile its outcome depends on, and makes the change
+ * visible in a single snapshot publication. After each mutation a new immutable BoardSnapshot
+ * is published through a volatile field; queries read the current snapshot without locking,
+ * so GETs never block or are blocked by writers.
+ *
+ * <p>The board is split into a fixed grid of lock stripes (tiles). A note belongs to the tile
+ * of its upper-left corner and a pin to the tile of its coordinate. POST locks the tiles its
+ * note covers, PIN and UNPIN lock the tiles where a note containing the point could start, so
+ * writers on distant parts of the board run concurrently. SHAKE and CLEAR lock every tile in
+ * index order. All writers then take a short publish lock to append to the shared indexes.
+ *
+ * <p>Each publication is described by a BoardEvent with the new snapshot's version. Events are
+ * kept in a bounded ChangeLog for GET SINCE and delivered to every subscribed listener, in
+ * version order, while the publish lock is held; listeners must therefore not block.
+ *
+ * <p>When a WriteAheadLog is attached, each event is also appended to it under the publish
+ * lock, and a mutation returns only once the log's fsync policy considers its event durable.
+ * That wait happens after every lock is released, so concurrent writers share one disk flush.
  */
 public class BoardState {
+    /** Tiles per board side; the board is split into at most TILES x TILES lock stripes. */
+    private static final int TILES = 8;
+
+    /** Writer-side state owned by one tile, guarded by its lock. */
+    private static final class Tile {
+        final ReentrantLock lock = new ReentrantLock();
+        /** Packed upper-left corners of this tile's notes, for constant-time overlap checks. */
+        final LongHashSet positions = new LongHashSet();
+        /** Pins whose coordinate lies in this tile. */
+        final PinGrid pins;
+
+        Tile(int noteW, int noteH) {
+            pins = new PinGrid(noteW, noteH);
+        }
+    }
+
     private final int boardW;
     private final int boardH;
     private final int noteW;
     private final int noteH;
     private final Set<String> validColors;
+    /** Small ordinal id per valid colour, indexing the per-colour note lists. */
+    private final Map<String, Integer> colorIds;
+    /** Valid colours indexed by colour id. */
+    private final String[] colorNames;
+
+    /** Tile size in board units; a whole number of note-sized grid cells. */
+    private final int tileW;
+    private final int tileH;
+    private final int tilesX;
+    private final int tilesY;
+    private final Tile[] tiles;
 
-    private final List<Note> notes = new ArrayList<>();
-    /** Pins as [x,y] pairs; multiple pins at same coordinate are allowed. */
-    private final List<int[]> pins = new ArrayList<>();
+    /**
+     * Guards the shared indexes, the published pins and snapshot publication.
+     * Always acquired after any tile locks.
+     */
+    private final ReentrantLock publishLock = new ReentrantLock();
+    /**
+     * Current generation of note indexes; replaced by shake and clear while every tile is held,
+     * so a tile holder may read it and the grid buckets of its own tiles without publishLock.
+     */
+    private NoteIndex index;
+    private long nextSeq;
+    /** Number of notes with at least one pin; published with each snapshot. */
+    private int pinnedNotes;
+    /** All pins as an immutable map, shared with published snapshots. */
+    private PinMap publishedPins = PinMap.EMPTY;
+    private volatile BoardSnapshot snapshot;
+    private final List<Consumer<BoardEvent>> listeners = new CopyOnWriteArrayList<>();
+    private final ChangeLog changes = new ChangeLog();
+    /** Durable log of every event, or null if the board is kept in memory only. */
+    private WriteAheadLog log;
+    /** host:port of the leader this board replicates, or null if clients may change it. */
+    private volatile String leader;
 
     public BoardState(int boardW, int boardH, int noteW, int noteH, Set<String> validColors) {
         this.boardW = boardW;
@@ -25,6 +94,25 @@ public class BoardState {
         this.noteW = noteW;
         this.noteH = noteH;
         this.validColors = new HashSet<>(validColors);
+        Map<String, Integer> ids = new HashMap<>();
+        this.colorNames = new String[this.validColors.size()];
+        for (String c : this.validColors) {
+            colorNames[ids.size()] = c;
+            ids.put(c, ids.size());
+        }
+        this.colorIds = Collections.unmodifiableMap(ids);
+
+        this.tileW = noteW * ceilDiv(ceilDiv(boardW, noteW), TILES);
+        this.tileH = noteH * ceilDiv(ceilDiv(boardH, noteH), TILES);
+        this.tilesX = ceilDiv(boardW, tileW);
+        this.tilesY = ceilDiv(boardH, tileH);
+        this.tiles = new Tile[tilesX * tilesY];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new Tile(noteW, noteH);
+        }
+
+        this.index = new NoteIndex(colorIds.size(), noteW, noteH);
+        this.snapshot = new BoardSnapshot(0, 0, index, publishedPins, 0, colorIds);
     }
 
     public int getBoardW() { return boardW; }
@@ -33,130 +121,502 @@ public class BoardState {
     public int getNoteH() { return noteH; }
     public Set<String> getValidColors() { return new HashSet<>(validColors); }
 
+    /**
+     * Returns the most recently published snapshot. Never blocks.
+     */
+    public BoardSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Registers listener for every subsequent change. It is called with the publish lock
+     * held, so it must return quickly and never block.
+     */
+    public void subscribe(Consumer<BoardEvent> listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(Consumer<BoardEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the changes after version since up to version upTo, typically the version of a
+     * snapshot just taken, or null if they are no longer all retained.
+     */
+    public List<BoardEvent> changesSince(long since, long upTo) {
+        return changes.since(since, upTo);
+    }
+
+    /**
+     * Attaches log, to which every later event is appended. Must be called before the board
+     * is shared with other threads.
+     */
+    void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Marks the board as a read-only replica of the server at leader (host:port). Its changes
+     * then come only from a Follower, which applies them through the ordinary methods.
+     */
+    void setLeader(String leader) {
+        this.leader = leader;
+    }
+
+    /** Returns the host:port this board replicates, or null if it accepts changes from clients. */
+    public String getLeader() {
+        return leader;
+    }
+
+    /**
+     * Replaces the whole board with one saved by SnapshotFile or sent by a replication leader,
+     * published as version: the notes in seq order with their seqs set, and the pin count at
+     * each packed coordinate in pinKeys. No event is logged, since the board has no history
+     * up to version; listeners get a RESET instead.
+     */
+    void restore(long version, long seqLimit, List<Note> notes, long[] pinKeys, int[] pinCounts) {
+        lockAll();
+        try {
+            for (Tile t : tiles) {
+                t.positions.clear();
+                t.pins.clear();
+            }
+            index = new NoteIndex(colorIds.size(), noteW, noteH);
+            publishedPins = PinMap.EMPTY;
+            pinnedNotes = 0;
+            for (int i = 0; i < pinKeys.length; i++) {
+                int x = Coords.x(pinKeys[i]);
+                int y = Coords.y(pinKeys[i]);
+                for (int c = 0; c < pinCounts[i]; c++) {
+                    tileAt(x, y).pins.add(x, y);
+                    publishedPins = publishedPins.plus(pinKeys[i]);
+                }
+            }
+            for (Note note : notes) {
+                int pinned = pinsInNote(note.getX(), note.getY());
+                note.addPins(pinned);
+                if (pinned > 0) pinnedNotes++;
+                tileAt(note.getX(), note.getY()).positions.add(Coords.pack(note.getX(), note.getY()));
+                index.add(note, colorIds.get(note.getColor()));
+            }
+            nextSeq = seqLimit;
+            changes.start(version);
+            snapshot = new BoardSnapshot(version, nextSeq, index, publishedPins, pinnedNotes, colorIds);
+            for (Consumer<BoardEvent> l : listeners) {
+                l.accept(BoardEvent.reset(version));
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Waits until the event with the given version is durable. Returns null, or LOG_FAILED if
+     * it was applied but cannot be written to the log.
+     */
+    private String awaitLog(long version) {
+        return log == null || log.awaitDurable(version) ? null : "LOG_FAILED";
+    }
+
+    /** The version the next publication will have. Caller must hold publishLock. */
+    private long nextVersion() {
+        return snapshot.getVersion() + 1;
+    }
+
+    /**
+     * Publishes the current state as a new snapshot with the event's version. The event is
+     * written to the change log (and the write-ahead log, if any) first, so the logs always
+     * cover every published version, then delivered to listeners. Caller must hold publishLock.
+     */
+    private void publish(BoardEvent event) {
+        if (log != null) log.append(event);
+        changes.add(event);
+        snapshot = new BoardSnapshot(event.version, nextSeq, index, publishedPins, pinnedNotes, colorIds);
+        for (Consumer<BoardEvent> l : listeners) {
+            l.accept(event);
+        }
+    }
+
     /**
      * Returns true if note at (x,y) is fully within board bounds.
      */
-    public synchronized boolean isInBounds(int x, int y) {
+    public boolean isInBounds(int x, int y) {
         return x >= 0 && y >= 0 && x + noteW <= boardW && y + noteH <= boardH;
     }
 
     /**
      * Returns true if the given color is valid.
      */
-    public synchronized boolean isValidColor(String color) {
+    public boolean isValidColor(String color) {
         return color != null && validColors.contains(color);
     }
 
     /**
-     * Returns true if any note completely overlaps the position (x, y).
+     * Returns the valid colour spelled exactly by s[from, to), or null if there is none.
+     * Lets the command parser resolve a colour without allocating a substring.
      */
-    private boolean hasCompleteOverlapAt(int x, int y) {
-        for (Note n : notes) {
-            if (n.getX() == x && n.getY() == y) return true;
+    public String findColor(CharSequence s, int from, int to) {
+        int len = to - from;
+        for (String c : colorNames) {
+            if (c.length() != len) continue;
+            int i = 0;
+            while (i < len && c.charAt(i) == s.charAt(from + i)) i++;
+            if (i == len) return c;
         }
-        return false;
+        return null;
     }
 
     /**
-     * Adds a note. Caller must hold lock and have already validated bounds, color, overlap.
+     * Adds a note. Caller must have already validated bounds, color, overlap.
      */
-    public synchronized void addNote(Note note) {
-        notes.add(note);
+    public void addNote(Note note) {
+        int x = note.getX();
+        int y = note.getY();
+        long version;
+        lockRegion(x, y, x + noteW - 1, y + noteH - 1);
+        try {
+            version = insert(note);
+        } finally {
+            unlockRegion(x, y, x + noteW - 1, y + noteH - 1);
+        }
+        awaitLog(version);
     }
 
     /**
      * Validates and adds a note. Returns null on success; otherwise error code (OUT_OF_BOUNDS, etc.).
      */
-    public synchronized String validateAndAddNote(int x, int y, String color, String message) {
+    public String validateAndAddNote(int x, int y, String color, String message) {
         if (!isInBounds(x, y)) {
             return "OUT_OF_BOUNDS";
         }
         if (!isValidColor(color)) {
             return "COLOUR_NOT_SUPPORTED";
         }
-        if (hasCompleteOverlapAt(x, y)) {
-            return "COMPLETE_OVERLAP";
+        long version;
+        lockRegion(x, y, x + noteW - 1, y + noteH - 1);
+        try {
+            if (tileAt(x, y).positions.contains(Coords.pack(x, y))) {
+                return "COMPLETE_OVERLAP";
+            }
+            version = insert(new Note(x, y, color, message));
+        } finally {
+            unlockRegion(x, y, x + noteW - 1, y + noteH - 1);
         }
-        addNote(new Note(x, y, color, message));
-        return null;
+        return awaitLog(version);
     }
 
     /**
-     * Returns true if at least one note contains the point (px, py).
+     * Counts the pins already inside the note, then indexes and publishes it. Returns the
+     * published version. Caller must hold the note's tiles.
      */
-    public synchronized boolean anyNoteContains(int px, int py) {
-        for (Note n : notes) {
-            if (n.contains(px, py, noteW, noteH)) return true;
+    private long insert(Note note) {
+        int x = note.getX();
+        int y = note.getY();
+        int pinned = pinsInNote(x, y);
+        note.addPins(pinned);
+        tileAt(x, y).positions.add(Coords.pack(x, y));
+
+        publishLock.lock();
+        try {
+            note.setSeq(nextSeq++);
+            if (pinned > 0) pinnedNotes++;
+            index.add(note, colorIds.get(note.getColor()));
+            long version = nextVersion();
+            publish(BoardEvent.post(version, note));
+            return version;
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /** Returns the number of pins inside the note at (x, y). Caller must hold the note's tiles. */
+    private int pinsInNote(int x, int y) {
+        int pinned = 0;
+        for (int ty = tileY(y); ty <= tileY(y + noteH - 1); ty++) {
+            for (int tx = tileX(x); tx <= tileX(x + noteW - 1); tx++) {
+                pinned += tiles[ty * tilesX + tx].pins.countInNote(x, y);
+            }
         }
-        return false;
+        return pinned;
     }
 
     /**
-     * Adds one pin at (x, y). Returns null on success, "NO_NOTE_AT_COORDINATE" if no note contains (x,y).
+     * Validates and applies a batch of POST, PIN and UNPIN items (null items are skipped) under a
+     * single acquisition of every lock, published as one snapshot and one BATCH event. Items are
+     * checked in order, each seeing the effect of the valid items before it. Returns the error
+     * code of each item, null where it succeeded. If atomic and any item fails, nothing is applied.
+     * If the applied items cannot be logged, each of them reports LOG_FAILED.
      */
-    public synchronized String pin(int x, int y) {
-        if (!anyNoteContains(x, y)) {
-            return "NO_NOTE_AT_COORDINATE";
+    public String[] applyBatch(List<BatchItem> items, boolean atomic) {
+        String[] errors = new String[items.size()];
+        Note[] notes = new Note[items.size()];
+        long version;
+        lockAll();
+        try {
+            // Effects of the batch's earlier valid items, which the board does not show yet.
+            LongHashSet posted = new LongHashSet();
+            SpatialGrid postedGrid = new SpatialGrid(noteW, noteH);
+            LongIntHashMap pinsAdded = new LongIntHashMap();
+            LongIntHashMap pinsRemoved = new LongIntHashMap();
+            boolean failed = false;
+            for (int i = 0; i < errors.length; i++) {
+                BatchItem item = items.get(i);
+                if (item == null) continue;
+                int x = item.x;
+                int y = item.y;
+                long key = Coords.pack(x, y);
+                switch (item.type) {
+                    case POST:
+                        if (!isInBounds(x, y)) {
+                            errors[i] = "OUT_OF_BOUNDS";
+                        } else if (!isValidColor(item.color)) {
+                            errors[i] = "COLOUR_NOT_SUPPORTED";
+                        } else if (tileAt(x, y).positions.contains(key) || posted.contains(key)) {
+                            errors[i] = "COMPLETE_OVERLAP";
+                        } else {
+                            notes[i] = new Note(x, y, item.color, item.message);
+                            posted.add(key);
+                            postedGrid.add(notes[i]);
+                        }
+                        break;
+                    case PIN:
+                        if (index.grid.anyContains(x, y, Long.MAX_VALUE) || postedGrid.anyContains(x, y, Long.MAX_VALUE)) {
+                            pinsAdded.increment(key);
+                        } else {
+                            errors[i] = "NO_NOTE_AT_COORDINATE";
+                        }
+                        break;
+                    case UNPIN:
+                        if (!pinsAdded.decrement(key)) {
+                            if (tileAt(x, y).pins.count(x, y) > pinsRemoved.get(key)) {
+                                pinsRemoved.increment(key);
+                            } else {
+                                errors[i] = "PIN_NOT_FOUND";
+                            }
+                        }
+                        break;
+                }
+                failed |= errors[i] != null;
+            }
+            if (failed && atomic) return errors;
+
+            // Every remaining item is known to succeed against the locked state.
+            version = nextVersion();
+            List<BoardEvent> applied = new ArrayList<>();
+            for (int i = 0; i < errors.length; i++) {
+                BatchItem item = items.get(i);
+                if (item == null || errors[i] != null) continue;
+                int x = item.x;
+                int y = item.y;
+                switch (item.type) {
+                    case POST:
+                        Note note = notes[i];
+                        note.addPins(pinsInNote(x, y));
+                        tileAt(x, y).positions.add(Coords.pack(x, y));
+                        note.setSeq(nextSeq++);
+                        if (note.getPinCount() > 0) pinnedNotes++;
+                        index.add(note, colorIds.get(note.getColor()));
+                        applied.add(BoardEvent.post(version, note));
+                        break;
+                    case PIN:
+                        tileAt(x, y).pins.add(x, y);
+                        pinnedNotes += index.grid.addPins(x, y, 1);
+                        publishedPins = publishedPins.plus(Coords.pack(x, y));
+                        applied.add(BoardEvent.pin(version, x, y));
+                        break;
+                    case UNPIN:
+                        tileAt(x, y).pins.remove(x, y);
+                        pinnedNotes += index.grid.addPins(x, y, -1);
+                        publishedPins = publishedPins.minus(Coords.pack(x, y));
+                        applied.add(BoardEvent.unpin(version, x, y));
+                        break;
+                }
+            }
+            if (applied.isEmpty()) return errors;
+            publish(BoardEvent.batch(version, Collections.unmodifiableList(applied)));
+        } finally {
+            unlockAll();
         }
-        pins.add(new int[]{x, y});
-        return null;
+        String err = awaitLog(version);
+        if (err != null) {
+            for (int i = 0; i < errors.length; i++) {
+                if (items.get(i) != null && errors[i] == null) errors[i] = err;
+            }
+        }
+        return errors;
     }
 
     /**
-     * Removes one pin at (x, y). Returns null on success, "PIN_NOT_FOUND" if no pin at that coordinate.
+     * Returns true if at least one note contains the point (px, py).
      */
-    public synchronized String unpin(int x, int y) {
-        for (int i = 0; i < pins.size(); i++) {
-            int[] p = pins.get(i);
-            if (p[0] == x && p[1] == y) {
-                pins.remove(i);
-                return null;
+    public boolean anyNoteContains(int px, int py) {
+        return snapshot.anyNoteContains(px, py);
+    }
+
+    /**
+     * Adds one pin at (x, y). Returns null on success, "NO_NOTE_AT_COORDINATE" if no note contains (x,y), "LOG_FAILED" if it cannot be logged.
+     */
+    public String pin(int x, int y) {
+        long version;
+        lockRegion(x - noteW + 1, y - noteH + 1, x, y);
+        try {
+            if (!index.grid.anyContains(x, y, Long.MAX_VALUE)) {
+                return "NO_NOTE_AT_COORDINATE";
+            }
+            tileAt(x, y).pins.add(x, y);
+            int newlyPinned = index.grid.addPins(x, y, 1);
+            publishLock.lock();
+            try {
+                pinnedNotes += newlyPinned;
+                publishedPins = publishedPins.plus(Coords.pack(x, y));
+                version = nextVersion();
+                publish(BoardEvent.pin(version, x, y));
+            } finally {
+                publishLock.unlock();
             }
+        } finally {
+            unlockRegion(x - noteW + 1, y - noteH + 1, x, y);
         }
-        return "PIN_NOT_FOUND";
+        return awaitLog(version);
     }
 
     /**
-     * Returns true if the note has at least one pin inside its rectangle.
+     * Removes one pin at (x, y). Returns null on success, "PIN_NOT_FOUND" if no pin at that coordinate, "LOG_FAILED" if it cannot be logged.
      */
-    private boolean isPinned(Note note) {
-        for (int[] p : pins) {
-            if (note.contains(p[0], p[1], noteW, noteH)) return true;
+    public String unpin(int x, int y) {
+        long version;
+        lockRegion(x - noteW + 1, y - noteH + 1, x, y);
+        try {
+            if (!tileAt(x, y).pins.remove(x, y)) {
+                return "PIN_NOT_FOUND";
+            }
+            int newlyPinned = index.grid.addPins(x, y, -1);
+            publishLock.lock();
+            try {
+                pinnedNotes += newlyPinned;
+                publishedPins = publishedPins.minus(Coords.pack(x, y));
+                version = nextVersion();
+                publish(BoardEvent.unpin(version, x, y));
+            } finally {
+                publishLock.unlock();
+            }
+        } finally {
+            unlockRegion(x - noteW + 1, y - noteH + 1, x, y);
         }
-        return false;
+        return awaitLog(version);
     }
 
     /**
      * Removes all unpinned notes and pins that no longer lie in any note. Atomic.
+     * A pin always lies inside some note, and that note is pinned, so only notes are removed.
+     * Survivors are re-indexed into a new generation so readers of older snapshots are unaffected.
+     * Returns null, or LOG_FAILED if the change cannot be logged.
      */
-    public synchronized void shake() {
-        notes.removeIf(n -> !isPinned(n));
-        pins.removeIf(p -> !anyNoteContains(p[0], p[1]));
+    public String shake() {
+        long version;
+        lockAll();
+        try {
+            NoteIndex survivors = new NoteIndex(colorIds.size(), noteW, noteH);
+            List<Note> removed = new ArrayList<>();
+            index.all.forEach(Long.MAX_VALUE, n -> {
+                if (n.getPinCount() > 0) {
+                    survivors.add(n, colorIds.get(n.getColor()));
+                } else {
+                    tileAt(n.getX(), n.getY()).positions.remove(Coords.pack(n.getX(), n.getY()));
+                    removed.add(n);
+                }
+            });
+            index = survivors;
+            version = nextVersion();
+            publish(BoardEvent.shake(version, Collections.unmodifiableList(removed)));
+        } finally {
+            unlockAll();
+        }
+        return awaitLog(version);
     }
 
     /**
-     * Removes all notes and all pins. Atomic.
+     * Removes all notes and all pins. Atomic. Returns null, or LOG_FAILED if the change cannot be logged.
      */
-    public synchronized void clear() {
-        notes.clear();
-        pins.clear();
+    public String clear() {
+        long version;
+        lockAll();
+        try {
+            for (Tile t : tiles) {
+                t.positions.clear();
+                t.pins.clear();
+            }
+            index = new NoteIndex(colorIds.size(), noteW, noteH);
+            publishedPins = PinMap.EMPTY;
+            pinnedNotes = 0;
+            version = nextVersion();
+            publish(BoardEvent.clear(version));
+        } finally {
+            unlockAll();
+        }
+        return awaitLog(version);
     }
 
     /**
-     * Returns a copy of all pins as [x,y] pairs.
+     * Returns a copy of all pins as [x,y] pairs, one entry per pin.
      */
-    public synchronized List<int[]> getAllPins() {
-        return new ArrayList<>(pins);
+    public List<int[]> getAllPins() {
+        return snapshot.getAllPins();
     }
 
     /**
      * Returns notes matching all criteria. null color/contains/refersTo means "match all".
      */
-    public synchronized List<Note> getNotes(String colorFilter, int cx, int cy, boolean useContains, String refersTo) {
-        return notes.stream().filter(n ->
-            (colorFilter == null || n.getColor().equals(colorFilter))
-                && (!useContains || n.contains(cx, cy, noteW, noteH))
-                && (refersTo == null || n.getMessage().contains(refersTo))
-        ).collect(Collectors.toList());
+    public List<Note> getNotes(String colorFilter, int cx, int cy, boolean useContains, String refersTo) {
+        return snapshot.getNotes(colorFilter, cx, cy, useContains, refersTo);
+    }
+
+    private Tile tileAt(int x, int y) {
+        return tiles[tileY(y) * tilesX + tileX(x)];
+    }
+
+    private int tileX(int x) {
+        return Math.max(0, Math.min(tilesX - 1, Math.floorDiv(x, tileW)));
+    }
+
+    private int tileY(int y) {
+        return Math.max(0, Math.min(tilesY - 1, Math.floorDiv(y, tileH)));
+    }
+
+    /** Locks the tiles covering the inclusive rectangle, in ascending tile index order. */
+    private void lockRegion(int x0, int y0, int x1, int y1) {
+        for (int ty = tileY(y0); ty <= tileY(y1); ty++) {
+            for (int tx = tileX(x0); tx <= tileX(x1); tx++) {
+                tiles[ty * tilesX + tx].lock.lock();
+            }
+        }
+    }
+
+    private void unlockRegion(int x0, int y0, int x1, int y1) {
+        for (int ty = tileY(y1); ty >= tileY(y0); ty--) {
+            for (int tx = tileX(x1); tx >= tileX(x0); tx--) {
+                tiles[ty * tilesX + tx].lock.unlock();
+            }
+        }
+    }
+
+    /** Takes every tile lock in index order, then the publish lock. */
+    private void lockAll() {
+        for (Tile t : tiles) {
+            t.lock.lock();
+        }
+        publishLock.lock();
+    }
+
+    private void unlockAll() {
+        publishLock.unlock();
+        for (int i = tiles.length - 1; i >= 0; i--) {
+            tiles[i].lock.unlock();
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
     }
 }
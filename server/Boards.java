@@ -0,0 +1,44 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The named boards one server hosts. Each is an independent BoardState with its own
+ * dimensions, colours, locks and indexes, so traffic on one board never contends with
+ * another. Connections start on the default board and switch with USE.
+ */
+final class Boards {
+    /** Name of the board given by the positional arguments. */
+    static final String DEFAULT = "default";
+
+    private final Map<String, BoardState> boards;
+
+    /** boards must contain DEFAULT; names are kept in iteration order. */
+    Boards(Map<String, BoardState> boards) {
+        if (!boards.containsKey(DEFAULT)) throw new IllegalArgumentException("no default board");
+        this.boards = Collections.unmodifiableMap(new LinkedHashMap<>(boards));
+    }
+
+    /** Returns the board named name, or null if there is none. */
+    BoardState get(String name) {
+        return boards.get(name);
+    }
+
+    BoardState getDefault() {
+        return boards.get(DEFAULT);
+    }
+
+    /** Returns the board names, the default first. */
+    Set<String> names() {
+        return boards.keySet();
+    }
+
+    /**
+     * Returns true if name can name a board: 1 to 64 ASCII letters, digits, '-', '_' or '.',
+     * not starting with '.', so it is also a safe directory name.
+     */
+    static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_-][A-Za-z0-9_.-]{0,63}");
+    }
+}
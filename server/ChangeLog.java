@@ -0,0 +1,43 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded in-memory log of the most recent board events. Every publication has exactly one
+ * event and versions are consecutive, so the log is a ring indexed by version. Appended under
+ * BoardState's publish lock before the matching snapshot is published; read by GET SINCE.
+ */
+final class ChangeLog {
+    static final int CAPACITY = 4096;
+
+    private final BoardEvent[] ring = new BoardEvent[CAPACITY];
+    /** Version of the newest event, or of the restored board if none has been logged since. */
+    private long latest;
+    /** Versions up to this one were never logged here, because the board was restored at it. */
+    private long start;
+
+    /** Marks version as the starting point of a board restored without its history. */
+    synchronized void start(long version) {
+        start = version;
+        latest = version;
+    }
+
+    synchronized void add(BoardEvent e) {
+        ring[(int) (e.version % CAPACITY)] = e;
+        latest = e.version;
+    }
+
+    /**
+     * Returns the events after version since, up to and including version upTo, in order.
+     * Returns null if some of them have been trimmed or since is not a version up to upTo,
+     * in which case the caller needs the full board instead.
+     */
+    synchronized List<BoardEvent> since(long since, long upTo) {
+        long oldest = Math.max(start + 1, latest - CAPACITY + 1);
+        if (since < 0 || since > upTo || since + 1 < oldest) return null;
+        List<BoardEvent> events = new ArrayList<>((int) (upTo - since));
+        for (long v = since + 1; v <= upTo; v++) {
+            events.add(ring[(int) (v % CAPACITY)]);
+        }
+        return events;
+    }
+}
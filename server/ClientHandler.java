@@ -1,66 +1,187 @@
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * Handles one client connection: sends initialization data, then processes commands
- * until DISCONNECT or socket close. All board operations go through synchronized BoardState.
+ * until DISCONNECT or socket close. All board operations go through the thread-safe BoardState.
+ * In thread-per-connection mode it runs on its own thread over a blocking socket; the
+ * NioServer event loop instead feeds it one line at a time and drains {@code out} itself.
+ *
+ * <p>Responses are buffered per connection rather than flushed line by line. The buffer is
+ * flushed only when no complete command line is waiting in the input, that is just before the
+ * handler would block for more input, so a large GET goes out in a few large writes and the
+ * replies to pipelined commands share them.
+ *
+ * <p>After SUBSCRIBE, board changes are pushed to the client as EVENT lines, written between
+ * command responses and never inside one. Events wait in a bounded Subscription queue; in
+ * thread-per-connection mode a separate push thread writes them, in NIO mode the event loop does.
+ *
+ * <p>A connection starts on the server's default board; USE switches it to another named board.
  */
 public class ClientHandler implements Runnable {
-    private static final Pattern SPACES = Pattern.compile("\\s+");
+    /** Input and output buffer size; a small buffer keeps many mostly idle connections cheap. */
+    static final int SMALL_BUFFER = 512;
+    private static final int DEFAULT_BUFFER = 8192;
 
     private final Socket socket;
-    private final BoardState board;
-    private BufferedReader in;
+    private final Boards boards;
+    /** The board commands apply to; changed only by USE, on the thread processing commands. */
+    private BoardState board;
+    private final int bufferSize;
+    private InputStream in;
+    private byte[] input;
+    /** Unread bytes of input are input[inputPos, inputEnd). */
+    private int inputPos;
+    private int inputEnd;
+    private final LineDecoder lines = new LineDecoder();
     private PrintWriter out;
+    /**
+     * Held while writing to out, so pushed events never split a response. A j.u.c lock rather
+     * than a monitor, so a virtual thread blocked on it or on the socket under it unmounts.
+     */
+    private final ReentrantLock outputLock = new ReentrantLock();
+    /** Creates the push thread of a subscribed socket connection. */
+    private final ThreadFactory pushThreads;
+    /** Tells a NioServer connection that events are pending; null in socket mode. */
+    private final Runnable eventsReady;
+    private Subscription subscription;
 
-    public ClientHandler(Socket socket, BoardState board) {
+    /** Most lines one BATCH may hold. */
+    static final int MAX_BATCH_ITEMS = 100_000;
+    private static final String LOG_FAILED_MESSAGE = "The change was applied but could not be written to the log";
+    /** Lines of the open BATCH, or null outside a batch. */
+    private List<String> batchLines;
+    private boolean batchAtomic;
+    /** The open batch exceeded MAX_BATCH_ITEMS and will be rejected at END. */
+    private boolean batchOverflow;
+    /** Error of the last failed parse; set whenever a parse method returns null. */
+    private String parseErrorCode;
+    private String parseErrorMessage;
+
+    public ClientHandler(Socket socket, Boards boards) {
+        this(socket, boards, DEFAULT_BUFFER, ClientHandler::pushThread);
+    }
+
+    public ClientHandler(Socket socket, Boards boards, int bufferSize, ThreadFactory pushThreads) {
         this.socket = socket;
-        this.board = board;
+        this.boards = boards;
+        this.board = boards.getDefault();
+        this.bufferSize = bufferSize;
+        this.pushThreads = pushThreads;
+        this.eventsReady = null;
+    }
+
+    /**
+     * Creates a handler without a socket, for callers that read lines and deliver the
+     * responses written to out themselves. eventsReady is run, possibly on another thread,
+     * when subscription events become pending; the caller then calls writeEvents.
+     */
+    ClientHandler(Boards boards, PrintWriter out, Runnable eventsReady) {
+        this.socket = null;
+        this.boards = boards;
+        this.board = boards.getDefault();
+        this.bufferSize = DEFAULT_BUFFER;
+        this.out = out;
+        this.pushThreads = null;
+        this.eventsReady = eventsReady;
+    }
+
+    private static Thread pushThread(Runnable r) {
+        Thread t = new Thread(r, "bboard-push");
+        t.setDaemon(true);
+        return t;
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in = socket.getInputStream();
+            input = new byte[bufferSize];
+            out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), bufferSize), false);
 
-            sendInit();
+            outputLock.lock();
+            try {
+                sendInit();
+            } finally {
+                outputLock.unlock();
+            }
 
             String line;
             while ((line = readLine()) != null) {
                 line = line.trim();
                 if (line.isEmpty()) continue;
 
-                if (processCommand(line)) {
-                    break; // DISCONNECT
+                boolean disconnect;
+                outputLock.lock();
+                try {
+                    disconnect = processCommand(line);
+                } finally {
+                    outputLock.unlock();
+                }
+                if (disconnect) {
+                    break;
                 }
             }
         } catch (IOException e) {
             // Client disconnected or I/O error
         } finally {
+            unsubscribe();
+            if (out != null) {
+                outputLock.lock();
+                try {
+                    out.flush(); // e.g. "OK bye"
+                } finally {
+                    outputLock.unlock();
+                }
+            }
             try {
                 socket.close();
             } catch (IOException ignored) {}
         }
     }
 
-    private String readLine() throws IOException {
-        try {
-            return in.readLine();
-        } catch (IOException e) {
-            return null;
+    /**
+     * Returns the next input line, or null at end of input. Buffered output is flushed only
+     * when no complete line is already buffered, i.e. just before blocking on the socket.
+     */
+    private String readLine() {
+        while (true) {
+            while (inputPos < inputEnd) {
+                String line = lines.push(input[inputPos++]);
+                if (line != null) return line;
+            }
+            outputLock.lock();
+            try {
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+            int n;
+            try {
+                n = in.read(input);
+            } catch (IOException e) {
+                return null;
+            }
+            if (n < 0) return lines.finish();
+            inputPos = 0;
+            inputEnd = n;
         }
     }
 
-    private void sendInit() {
+    void sendInit() {
         out.println("BOARD " + board.getBoardW() + " " + board.getBoardH());
         out.println("NOTE " + board.getNoteW() + " " + board.getNoteH());
         Set<String> colors = board.getValidColors();
@@ -84,39 +205,72 @@ public class ClientHandler implements Runnable {
         out.println("ERROR " + code + " " + description);
     }
 
+    /** Replies READ_ONLY and returns true if the board is a replica that clients cannot change. */
+    private boolean rejectIfReadOnly() {
+        String leader = board.getLeader();
+        if (leader == null) return false;
+        sendError("READ_ONLY", "This server replicates " + leader + "; send changes there");
+        return true;
+    }
+
     /**
      * Process one command line. Returns true if client requested DISCONNECT.
+     * The line is scanned in place with CommandTokenizer: arguments are passed to the
+     * handlers as offsets into it rather than as substrings.
      */
-    private boolean processCommand(String line) {
-        String[] tokens = SPACES.split(line, 2);
-        String cmd = tokens[0];
-        String rest = tokens.length > 1 ? tokens[1].trim() : "";
+    boolean processCommand(String line) {
+        if (batchLines != null) {
+            collectBatchLine(line);
+            return false;
+        }
+        int len = line.length();
+        int cmdEnd = CommandTokenizer.tokenEnd(line, 0, len);
+        int restStart = CommandTokenizer.trimStart(line, CommandTokenizer.skipSeparators(line, cmdEnd, len), len);
+        int restEnd = CommandTokenizer.trimEnd(line, restStart, len);
 
         try {
-            switch (cmd.toUpperCase()) {
+            switch (commandName(line, cmdEnd)) {
                 case "POST":
-                    handlePost(rest);
+                    handlePost(line, restStart, restEnd);
                     return false;
                 case "GET":
-                    handleGet(rest);
+                    handleGet(line, restStart, restEnd, false);
+                    return false;
+                case "COUNT":
+                    handleGet(line, restStart, restEnd, true);
+                    return false;
+                case "STATS":
+                    handleStats(restStart, restEnd);
                     return false;
                 case "PIN":
-                    handlePin(rest);
+                    handlePin(line, restStart, restEnd);
                     return false;
                 case "UNPIN":
-                    handleUnpin(rest);
+                    handleUnpin(line, restStart, restEnd);
                     return false;
                 case "SHAKE":
-                    handleShake(rest);
+                    handleShake(restStart, restEnd);
                     return false;
                 case "CLEAR":
-                    handleClear(rest);
+                    handleClear(restStart, restEnd);
+                    return false;
+                case "BATCH":
+                    handleBatch(line, restStart, restEnd);
+                    return false;
+                case "SUBSCRIBE":
+                    handleSubscribe(restStart, restEnd);
+                    return false;
+                case "REPLICATE":
+                    handleReplicate(line, restStart, restEnd);
+                    return false;
+                case "USE":
+                    handleUse(line, restStart, restEnd);
                     return false;
                 case "DISCONNECT":
                     handleDisconnect();
                     return true;
                 default:
-                    sendError("INVALID_FORMAT", "Unrecognized command: " + cmd);
+                    sendError("INVALID_FORMAT", "Unrecognized command: " + line.substring(0, cmdEnd));
                     return false;
             }
         } catch (Exception e) {
@@ -125,189 +279,643 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handlePost(String rest) {
-        // POST <x> <y> <colour> <message>
-        if (rest.isEmpty()) {
-            sendError("INVALID_FORMAT", "Expected format: POST <x> <y> <colour> <message>");
+    private static final String[] COMMANDS = {"POST", "GET", "PIN", "UNPIN", "SHAKE", "CLEAR", "SUBSCRIBE",
+        "COUNT", "STATS", "BATCH", "REPLICATE", "USE", "DISCONNECT"};
+
+    /**
+     * Returns the upper-cased command name at line[0, end). Known ASCII names resolve to a
+     * constant without allocating; anything else is upper-cased as a String.
+     */
+    private static String commandName(String line, int end) {
+        if (CommandTokenizer.isAscii(line, 0, end)) {
+            for (String name : COMMANDS) {
+                if (CommandTokenizer.equalsAsciiIgnoreCase(line, 0, end, name)) return name;
+            }
+        }
+        return line.substring(0, end).toUpperCase();
+    }
+
+    private void handlePost(String line, int from, int to) {
+        if (rejectIfReadOnly()) return;
+        BatchItem item = parsePost(line, from, to);
+        if (item == null) {
+            sendError(parseErrorCode, parseErrorMessage);
             return;
         }
-        String[] parts = rest.split("\\s+", 4);
-        if (parts.length < 4) {
-            sendError("INVALID_FORMAT", "Expected format: POST <x> <y> <colour> <message>");
+        String err = board.validateAndAddNote(item.x, item.y, item.color, item.message);
+        if (err != null) {
+            sendError(err, describeError(err, item));
             return;
         }
-        int x = parseInt(parts[0]);
-        int y = parseInt(parts[1]);
+        sendOk();
+    }
+
+    /**
+     * Parses the arguments of POST <x> <y> <colour> <message>. Returns null on a format
+     * error, leaving it in parseErrorCode and parseErrorMessage.
+     */
+    private BatchItem parsePost(String line, int from, int to) {
+        if (from == to) {
+            return parseError("INVALID_FORMAT", "Expected format: POST <x> <y> <colour> <message>");
+        }
+        int xEnd = CommandTokenizer.tokenEnd(line, from, to);
+        int yStart = CommandTokenizer.skipSeparators(line, xEnd, to);
+        int yEnd = CommandTokenizer.tokenEnd(line, yStart, to);
+        int colorStart = CommandTokenizer.skipSeparators(line, yEnd, to);
+        int colorEnd = CommandTokenizer.tokenEnd(line, colorStart, to);
+        int messageStart = CommandTokenizer.skipSeparators(line, colorEnd, to);
+        if (messageStart == to) {
+            return parseError("INVALID_FORMAT", "Expected format: POST <x> <y> <colour> <message>");
+        }
+        int x = CommandTokenizer.parseInt(line, from, xEnd);
+        int y = CommandTokenizer.parseInt(line, yStart, yEnd);
         if (x < 0 || y < 0) {
-            sendError("INVALID_FORMAT", "Coordinates must be non-negative integers");
-            return;
+            return parseError("INVALID_FORMAT", "Coordinates must be non-negative integers");
         }
-        String color = parts[2];
-        String message = parts[3].trim();
+        String color = board.findColor(line, colorStart, colorEnd);
+        if (color == null) color = line.substring(colorStart, colorEnd);
+        String message = line.substring(CommandTokenizer.trimStart(line, messageStart, to), to);
+        return BatchItem.post(x, y, color, message);
+    }
 
-        String err = board.validateAndAddNote(x, y, color, message);
-        if (err != null) {
-            switch (err) {
-                case "OUT_OF_BOUNDS":
-                    sendError("OUT_OF_BOUNDS", "Note at (" + x + ", " + y + ") exceeds board dimensions (" + board.getBoardW() + "x" + board.getBoardH() + ")");
-                    break;
-                case "COLOUR_NOT_SUPPORTED":
-                    sendError("COLOUR_NOT_SUPPORTED", "The colour \"" + color + "\" is not supported. Supported colours: " + board.getValidColors());
-                    break;
-                case "COMPLETE_OVERLAP":
-                    sendError("COMPLETE_OVERLAP", "A note already exists at position (" + x + ", " + y + ")");
-                    break;
-                default:
-                    sendError(err, "Post failed");
-            }
-            return;
+    /**
+     * Parses the arguments of PIN or UNPIN <x> <y>. Returns null on a format error, leaving
+     * it in parseErrorCode and parseErrorMessage.
+     */
+    private BatchItem parsePin(String line, int from, int to, boolean unpin) {
+        int xEnd = CommandTokenizer.tokenEnd(line, from, to);
+        int yStart = CommandTokenizer.skipSeparators(line, xEnd, to);
+        if (from == to || yStart == to || CommandTokenizer.tokenEnd(line, yStart, to) != to) {
+            return parseError("INVALID_FORMAT", unpin ? "Expected format: UNPIN <x> <y>" : "Expected format: PIN <x> <y>");
         }
-        sendOk();
+        int x = CommandTokenizer.parseInt(line, from, xEnd);
+        int y = CommandTokenizer.parseInt(line, yStart, to);
+        if (x < 0 || y < 0) {
+            return parseError("INVALID_FORMAT", "Coordinates must be non-negative integers");
+        }
+        return unpin ? BatchItem.unpin(x, y) : BatchItem.pin(x, y);
     }
 
-    private void handleGet(String rest) {
-        if (rest.equalsIgnoreCase("PINS")) {
-            List<int[]> pins = board.getAllPins();
-            for (int[] p : pins) {
-                out.println("PIN " + p[0] + " " + p[1]);
+    private BatchItem parseError(String code, String message) {
+        parseErrorCode = code;
+        parseErrorMessage = message;
+        return null;
+    }
+
+    /** Returns the description sent with a BoardState error code for item. */
+    private String describeError(String err, BatchItem item) {
+        switch (err) {
+            case "OUT_OF_BOUNDS":
+                return "Note at (" + item.x + ", " + item.y + ") exceeds board dimensions (" + board.getBoardW() + "x" + board.getBoardH() + ")";
+            case "COLOUR_NOT_SUPPORTED":
+                return "The colour \"" + item.color + "\" is not supported. Supported colours: " + board.getValidColors();
+            case "COMPLETE_OVERLAP":
+                return "A note already exists at position (" + item.x + ", " + item.y + ")";
+            case "NO_NOTE_AT_COORDINATE":
+                return "No note contains the coordinate (" + item.x + ", " + item.y + ")";
+            case "PIN_NOT_FOUND":
+                return "No pin exists at coordinate (" + item.x + ", " + item.y + ")";
+            case "LOG_FAILED":
+                return LOG_FAILED_MESSAGE;
+            default:
+                return "Post failed";
+        }
+    }
+
+    /**
+     * GET, or with count set COUNT, which takes the same filters but replies with the single
+     * line OK n, n being the number of notes (or with PINS, pins) GET would return.
+     */
+    private void handleGet(String line, int from, int to, boolean count) {
+        // Every GET reads one immutable snapshot, without taking any board lock.
+        BoardSnapshot snapshot = board.snapshot();
+        if (to - from == 4 && line.regionMatches(true, from, "PINS", 0, 4)) {
+            if (count) {
+                sendOk(snapshot.getPinCount());
+                return;
+            }
+            sendOk(writePins(snapshot));
+            return;
+        }
+        int firstEnd = CommandTokenizer.tokenEnd(line, from, to);
+        if (!count && CommandTokenizer.equalsAsciiIgnoreCase(line, from, firstEnd, "SINCE")) {
+            long since = CommandTokenizer.parseLong(line, firstEnd, to);
+            if (since < 0) {
+                sendError("INVALID_FORMAT", "Expected format: GET SINCE <version>");
+                return;
             }
-            sendOk(pins.size());
+            handleGetSince(snapshot, since);
             return;
         }
 
-        // GET [colour=<c>] [contains=<x> <y>] [refersTo=<text>]
-        String colorFilter = null;
-        int cx = 0, cy = 0;
-        boolean useContains = false;
-        String refersTo = null;
-
-        String remaining = rest;
-        while (!remaining.isEmpty()) {
-            remaining = remaining.trim();
-            if (remaining.toLowerCase().startsWith("colour=")) {
-                int eq = remaining.indexOf('=');
-                int next = findNextFilterStart(remaining, eq + 1);
-                colorFilter = next < 0 ? remaining.substring(eq + 1).trim() : remaining.substring(eq + 1, next).trim();
-                remaining = next < 0 ? "" : remaining.substring(next);
-            } else if (remaining.toLowerCase().startsWith("color=")) {
-                int eq = remaining.indexOf('=');
-                int next = findNextFilterStart(remaining, eq + 1);
-                colorFilter = next < 0 ? remaining.substring(eq + 1).trim() : remaining.substring(eq + 1, next).trim();
-                remaining = next < 0 ? "" : remaining.substring(next);
-            } else if (remaining.toLowerCase().startsWith("contains=")) {
-                int eq = remaining.indexOf('=');
-                String after = remaining.substring(eq + 1).trim();
-                String[] nums = after.split("\\s+", 2);
-                if (nums.length < 2) {
+        // GET [limit=<n>] [after=<cursor>] [colour=<c>] [within=<x1> <y1> <x2> <y2>]
+        //     [contains=<x> <y>] [refersTo=<text>]
+        // contains= and refersTo= take the rest of the line, so other options come before them.
+        NoteFilter filter = new NoteFilter();
+        int pageSize = Integer.MAX_VALUE;
+        long after = -1;
+
+        int pos = from;
+        while (pos < to) {
+            pos = CommandTokenizer.trimStart(line, pos, to);
+            int keyLen = CommandTokenizer.startsWithLower(line, pos, to, "colour=") ? 7
+                : CommandTokenizer.startsWithLower(line, pos, to, "color=") ? 6 : 0;
+            if (keyLen > 0) {
+                int valueStart = pos + keyLen;
+                int next = findNextFilterStart(line, valueStart, to);
+                int valueEnd = next < 0 ? to : next;
+                valueStart = CommandTokenizer.trimStart(line, valueStart, valueEnd);
+                valueEnd = CommandTokenizer.trimEnd(line, valueStart, valueEnd);
+                filter.color = board.findColor(line, valueStart, valueEnd);
+                if (filter.color == null) filter.color = line.substring(valueStart, valueEnd);
+                pos = next < 0 ? to : next;
+            } else if (CommandTokenizer.startsWithLower(line, pos, to, "contains=")) {
+                int xStart = CommandTokenizer.trimStart(line, pos + 9, to);
+                int xEnd = CommandTokenizer.tokenEnd(line, xStart, to);
+                if (xEnd == to) {
                     sendError("INVALID_FORMAT", "Expected contains=<x> <y>");
                     return;
                 }
-                cx = parseInt(nums[0]);
-                cy = parseInt(nums[1]);
-                if (cx < 0 || cy < 0) {
+                // The y value runs to the end of the line, so contains= is always the last filter.
+                filter.cx = CommandTokenizer.parseInt(line, xStart, xEnd);
+                filter.cy = CommandTokenizer.parseInt(line, CommandTokenizer.skipSeparators(line, xEnd, to), to);
+                if (filter.cx < 0 || filter.cy < 0) {
                     sendError("INVALID_FORMAT", "Contains coordinates must be non-negative");
                     return;
                 }
-                useContains = true;
-                int consumed = eq + 1 + nums[0].length() + 1 + nums[1].length();
-                int next = findNextFilterStart(remaining, eq + consumed);
-                remaining = next < 0 ? "" : remaining.substring(next);
-            } else if (remaining.toLowerCase().startsWith("refersto=")) {
-                int eq = remaining.indexOf('=');
-                refersTo = remaining.substring(eq + 1).trim();
-                remaining = "";
+                filter.useContains = true;
+                pos = to;
+            } else if (CommandTokenizer.startsWithLower(line, pos, to, "within=")) {
+                int[] corners = new int[4];
+                pos = CommandTokenizer.trimStart(line, pos + 7, to);
+                for (int k = 0; k < corners.length; k++) {
+                    int end = CommandTokenizer.tokenEnd(line, pos, to);
+                    corners[k] = pos == end ? -1 : CommandTokenizer.parseInt(line, pos, end);
+                    pos = CommandTokenizer.skipSeparators(line, end, to);
+                }
+                if (corners[0] < 0 || corners[1] < 0 || corners[2] < 0 || corners[3] < 0) {
+                    sendError("INVALID_FORMAT", "Expected within=<x1> <y1> <x2> <y2> with non-negative coordinates");
+                    return;
+                }
+                if (corners[0] > corners[2] || corners[1] > corners[3]) {
+                    sendError("INVALID_FORMAT", "within= needs x1 <= x2 and y1 <= y2");
+                    return;
+                }
+                filter.useWithin = true;
+                filter.x1 = corners[0];
+                filter.y1 = corners[1];
+                filter.x2 = corners[2];
+                filter.y2 = corners[3];
+            } else if (!count && CommandTokenizer.startsWithLower(line, pos, to, "limit=")) {
+                int valueStart = CommandTokenizer.trimStart(line, pos + 6, to);
+                pos = CommandTokenizer.tokenEnd(line, valueStart, to);
+                pageSize = CommandTokenizer.parseInt(line, valueStart, pos);
+                if (pageSize <= 0) {
+                    sendError("INVALID_FORMAT", "limit must be a positive integer");
+                    return;
+                }
+            } else if (!count && CommandTokenizer.startsWithLower(line, pos, to, "after=")) {
+                int valueStart = CommandTokenizer.trimStart(line, pos + 6, to);
+                pos = CommandTokenizer.tokenEnd(line, valueStart, to);
+                after = CommandTokenizer.parseLong(line, valueStart, pos);
+                if (after < 0) {
+                    sendError("INVALID_FORMAT", "after must be a cursor returned by NEXT");
+                    return;
+                }
+            } else if (CommandTokenizer.startsWithLower(line, pos, to, "refersto=")) {
+                filter.refersTo = line.substring(CommandTokenizer.trimStart(line, pos + 9, to), to);
+                pos = to;
             } else {
-                sendError("INVALID_FORMAT", "Invalid GET filter: " + remaining);
+                sendError("INVALID_FORMAT", "Invalid " + (count ? "COUNT" : "GET") + " filter: " + line.substring(pos, to));
                 return;
             }
         }
 
-        List<Note> notes = board.getNotes(colorFilter, cx, cy, useContains, refersTo);
-        for (Note n : notes) {
+        if (count) {
+            sendOk(snapshot.countNotes(filter));
+            return;
+        }
+
+        // Matches are written as they are found, so nothing proportional to the result is held.
+        PageWriter page = new PageWriter(pageSize);
+        snapshot.forEachNote(filter, after, page);
+        if (page.more) {
+            out.println("NEXT " + page.lastSeq);
+        }
+        sendOk(page.count);
+    }
+
+    /**
+     * Writes the notes a GET visits as NOTE lines, up to one page. Notes are visited in seq
+     * order, so the seq of the last note written is a stable cursor for the next page: it is
+     * sent as NEXT, and only if another match exists.
+     */
+    private final class PageWriter implements Predicate<Note> {
+        private final int pageSize;
+        int count;
+        long lastSeq;
+        boolean more;
+
+        PageWriter(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean test(Note n) {
+            if (count == pageSize) {
+                more = true;
+                return false;
+            }
             out.println("NOTE " + n.getX() + " " + n.getY() + " " + n.getColor() + " " + n.getMessage());
+            count++;
+            lastSeq = n.getSeq();
+            return true;
         }
-        sendOk(notes.size());
     }
 
-    /** Finds the start index of the next filter (space + key=) in s at or after position from. */
-    private int findNextFilterStart(String s, int from) {
-        if (from >= s.length()) return -1;
-        String rest = s.substring(from).toLowerCase();
-        int best = -1;
-        for (String key : new String[]{" colour=", " color=", " contains=", " refersto="}) {
-            int idx = rest.indexOf(key);
-            if (idx >= 0 && (best < 0 || idx < best)) best = idx;
+    /**
+     * GET SINCE: replies VERSION with the snapshot's version, then the changes after since as
+     * EVENT lines. If they are no longer all in the change log (or since is from the future),
+     * replies RESYNC followed by the whole board as NOTE and PIN lines instead.
+     */
+    private void handleGetSince(BoardSnapshot snapshot, long since) {
+        out.println("VERSION " + snapshot.getVersion());
+        List<BoardEvent> changes = board.changesSince(since, snapshot.getVersion());
+        if (changes == null) {
+            out.println("RESYNC");
+            // Streamed like a plain GET, so a resync holds nothing proportional to the board.
+            PageWriter page = new PageWriter(Integer.MAX_VALUE);
+            snapshot.forEachNote(new NoteFilter(), -1, page);
+            sendOk(page.count + writePins(snapshot));
+            return;
+        }
+        int count = 0;
+        for (BoardEvent e : changes) {
+            count += writeEvent(e);
         }
-        return best < 0 ? -1 : from + best + 1; // +1 to skip the leading space
+        sendOk(count);
     }
 
-    private void handlePin(String rest) {
-        String[] parts = rest.split("\\s+");
-        if (parts.length != 2) {
-            sendError("INVALID_FORMAT", "Expected format: PIN <x> <y>");
+    /** Writes a PIN line per pin of snapshot, duplicates included, and returns their number. */
+    private int writePins(BoardSnapshot snapshot) {
+        int[] count = {0};
+        snapshot.forEachPin((key, n) -> {
+            for (int i = 0; i < n; i++) {
+                out.println("PIN " + Coords.x(key) + " " + Coords.y(key));
+            }
+            count[0] += n;
+        });
+        return count[0];
+    }
+
+    private static final String[] FILTER_KEYS = {"colour=", "color=", "contains=", "refersto=", "limit=", "after=", "within="};
+
+    /**
+     * Finds the start index of the next filter (space + key=) in line[from, to), or -1.
+     */
+    private static int findNextFilterStart(String line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line.charAt(i) != ' ') continue;
+            for (String key : FILTER_KEYS) {
+                if (CommandTokenizer.startsWithLower(line, i + 1, to, key)) return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void handlePin(String line, int from, int to) {
+        if (rejectIfReadOnly()) return;
+        BatchItem item = parsePin(line, from, to, false);
+        if (item == null) {
+            sendError(parseErrorCode, parseErrorMessage);
             return;
         }
-        int x = parseInt(parts[0]);
-        int y = parseInt(parts[1]);
-        if (x < 0 || y < 0) {
-            sendError("INVALID_FORMAT", "Coordinates must be non-negative integers");
+        String err = board.pin(item.x, item.y);
+        if (err != null) {
+            sendError(err, describeError(err, item));
+            return;
+        }
+        sendOk();
+    }
+
+    private void handleUnpin(String line, int from, int to) {
+        if (rejectIfReadOnly()) return;
+        BatchItem item = parsePin(line, from, to, true);
+        if (item == null) {
+            sendError(parseErrorCode, parseErrorMessage);
             return;
         }
-        String err = board.pin(x, y);
+        String err = board.unpin(item.x, item.y);
         if (err != null) {
-            sendError("NO_NOTE_AT_COORDINATE", "No note contains the coordinate (" + x + ", " + y + ")");
+            sendError(err, describeError(err, item));
             return;
         }
         sendOk();
     }
 
-    private void handleUnpin(String rest) {
-        String[] parts = rest.split("\\s+");
-        if (parts.length != 2) {
-            sendError("INVALID_FORMAT", "Expected format: UNPIN <x> <y>");
+    /**
+     * BATCH [ATOMIC]: the following lines, up to END, are collected instead of run. See runBatch.
+     */
+    private void handleBatch(String line, int from, int to) {
+        boolean atomic = CommandTokenizer.equalsAsciiIgnoreCase(line, from, to, "ATOMIC");
+        if (from != to && !atomic) {
+            sendError("INVALID_FORMAT", "Expected format: BATCH [ATOMIC]");
             return;
         }
-        int x = parseInt(parts[0]);
-        int y = parseInt(parts[1]);
-        if (x < 0 || y < 0) {
-            sendError("INVALID_FORMAT", "Coordinates must be non-negative integers");
+        batchLines = new ArrayList<>();
+        batchAtomic = atomic;
+        batchOverflow = false;
+    }
+
+    /** Adds one line of an open batch, or runs the batch at END. */
+    private void collectBatchLine(String line) {
+        if (line.equalsIgnoreCase("END")) {
+            runBatch();
+        } else if (batchLines.size() == MAX_BATCH_ITEMS) {
+            batchOverflow = true;
+        } else {
+            batchLines.add(line);
+        }
+    }
+
+    /**
+     * Applies a collected batch with one BoardState call and replies with one block: an
+     * ITEM <n> ERROR <code> <description> line per failed item (n counts from 1), then
+     * OK applied=<a> failed=<f>. An atomic batch with failures applies nothing and ends in
+     * ERROR BATCH_REJECTED instead; if some of its items are malformed, only those are reported.
+     */
+    private void runBatch() {
+        List<String> lines = batchLines;
+        batchLines = null;
+        if (batchOverflow) {
+            sendError("BATCH_TOO_LARGE", "A batch holds at most " + MAX_BATCH_ITEMS + " items");
             return;
         }
-        String err = board.unpin(x, y);
-        if (err != null) {
-            sendError("PIN_NOT_FOUND", "No pin exists at coordinate (" + x + ", " + y + ")");
+        if (rejectIfReadOnly()) return;
+        int n = lines.size();
+        List<BatchItem> items = new ArrayList<>(n);
+        String[] codes = new String[n];
+        String[] descriptions = new String[n];
+        boolean malformed = false;
+        boolean logFailed = false;
+        for (int i = 0; i < n; i++) {
+            BatchItem item = parseBatchItem(lines.get(i));
+            items.add(item);
+            if (item == null) {
+                codes[i] = parseErrorCode;
+                descriptions[i] = parseErrorMessage;
+                malformed = true;
+            }
+        }
+        if (!(malformed && batchAtomic)) {
+            String[] errors = board.applyBatch(items, batchAtomic);
+            for (int i = 0; i < n; i++) {
+                if (errors[i] != null) {
+                    codes[i] = errors[i];
+                    descriptions[i] = describeError(errors[i], items.get(i));
+                    logFailed |= errors[i].equals("LOG_FAILED");
+                }
+            }
+        }
+        int failed = 0;
+        for (int i = 0; i < n; i++) {
+            if (codes[i] != null) {
+                out.println("ITEM " + (i + 1) + " ERROR " + codes[i] + " " + descriptions[i]);
+                failed++;
+            }
+        }
+        if (batchAtomic && logFailed) {
+            // Only applied items fail this way, and an atomic batch that got that far applied them all.
+            sendError("LOG_FAILED", LOG_FAILED_MESSAGE);
             return;
         }
-        sendOk();
+        if (batchAtomic && failed > 0) {
+            sendError("BATCH_REJECTED", failed + " of " + n + " items failed; nothing was applied");
+            return;
+        }
+        out.println("OK applied=" + (n - failed) + " failed=" + failed);
+    }
+
+    /** Parses one batch line. Returns null on error, leaving it in parseErrorCode and parseErrorMessage. */
+    private BatchItem parseBatchItem(String line) {
+        int len = line.length();
+        int cmdEnd = CommandTokenizer.tokenEnd(line, 0, len);
+        int restStart = CommandTokenizer.trimStart(line, CommandTokenizer.skipSeparators(line, cmdEnd, len), len);
+        int restEnd = CommandTokenizer.trimEnd(line, restStart, len);
+        switch (commandName(line, cmdEnd)) {
+            case "POST":
+                return parsePost(line, restStart, restEnd);
+            case "PIN":
+                return parsePin(line, restStart, restEnd, false);
+            case "UNPIN":
+                return parsePin(line, restStart, restEnd, true);
+            default:
+                return parseError("INVALID_FORMAT", "Only POST, PIN and UNPIN are allowed in a batch");
+        }
     }
 
-    private void handleShake(String rest) {
-        if (!rest.isEmpty()) {
+    private void handleShake(int from, int to) {
+        if (rejectIfReadOnly()) return;
+        if (from != to) {
             sendError("INVALID_FORMAT", "SHAKE takes no arguments");
             return;
         }
-        board.shake();
+        if (board.shake() != null) {
+            sendError("LOG_FAILED", LOG_FAILED_MESSAGE);
+            return;
+        }
         sendOk();
     }
 
-    private void handleClear(String rest) {
-        if (!rest.isEmpty()) {
+    private void handleClear(int from, int to) {
+        if (rejectIfReadOnly()) return;
+        if (from != to) {
             sendError("INVALID_FORMAT", "CLEAR takes no arguments");
             return;
         }
-        board.clear();
+        if (board.clear() != null) {
+            sendError("LOG_FAILED", LOG_FAILED_MESSAGE);
+            return;
+        }
         sendOk();
     }
 
-    private void handleDisconnect() {
-        out.println("OK bye");
+    /**
+     * STATS: one line summarising a snapshot from its counters, e.g.
+     * OK notes=5 pinned=2 unpinned=3 pins=4 version=17 colours=blue:3,red:2
+     */
+    private void handleStats(int from, int to) {
+        if (from != to) {
+            sendError("INVALID_FORMAT", "STATS takes no arguments");
+            return;
+        }
+        BoardSnapshot snapshot = board.snapshot();
+        int notes = snapshot.getNoteCount();
+        int pinned = snapshot.getPinnedNoteCount();
+        StringBuilder sb = new StringBuilder("OK notes=").append(notes)
+            .append(" pinned=").append(pinned)
+            .append(" unpinned=").append(notes - pinned)
+            .append(" pins=").append(snapshot.getPinCount())
+            .append(" version=").append(snapshot.getVersion())
+            .append(" colours=");
+        String sep = "";
+        NoteFilter byColor = new NoteFilter();
+        for (String c : new TreeSet<>(board.getValidColors())) {
+            byColor.color = c;
+            sb.append(sep).append(c).append(':').append(snapshot.countNotes(byColor));
+            sep = ",";
+        }
+        out.println(sb.toString());
     }
 
-    private int parseInt(String s) {
+    private void handleSubscribe(int from, int to) {
+        if (from != to) {
+            sendError("INVALID_FORMAT", "SUBSCRIBE takes no arguments");
+            return;
+        }
+        subscribe();
+        sendOk();
+    }
+
+    /**
+     * REPLICATE [<version>]: the stream a Follower reads. Subscribes like SUBSCRIBE, then
+     * replies like GET SINCE version, or with the whole board if version is omitted. Every
+     * later change is pushed as EVENT lines; the first pushes may repeat changes the reply
+     * already covered, so followers skip events by version.
+     */
+    private void handleReplicate(String line, int from, int to) {
+        long since = -1;
+        if (from != to) {
+            since = CommandTokenizer.parseLong(line, from, to);
+            if (since < 0) {
+                sendError("INVALID_FORMAT", "Expected format: REPLICATE [<version>]");
+                return;
+            }
+        }
+        // Subscribe before taking the snapshot, so no change falls between the reply and the pushes.
+        subscribe();
+        handleGetSince(board.snapshot(), since);
+    }
+
+    /**
+     * USE <board>: switches the connection to the named board and replies with its BOARD, NOTE
+     * and COLORS lines, as on connect. A subscription moves to the new board and pushes
+     * EVENT RESYNC, since the client's copy is of another board.
+     */
+    private void handleUse(String line, int from, int to) {
+        if (from == to) {
+            sendError("INVALID_FORMAT", "Expected format: USE <board>");
+            return;
+        }
+        String name = line.substring(from, to);
+        BoardState next = boards.get(name);
+        if (next == null) {
+            sendError("UNKNOWN_BOARD", "No board named " + name + "; boards: " + String.join(" ", boards.names()));
+            return;
+        }
+        if (subscription != null && next != board) {
+            board.unsubscribe(subscription);
+            next.subscribe(subscription);
+            subscription.accept(BoardEvent.reset(next.snapshot().getVersion()));
+        }
+        board = next;
+        sendInit();
+    }
+
+    private void subscribe() {
+        if (subscription == null) {
+            subscription = new Subscription(eventsReady);
+            board.subscribe(subscription);
+            if (socket != null) {
+                pushThreads.newThread(this::pushEvents).start();
+            }
+        }
+    }
+
+    /** Push thread of a subscribed socket connection: writes events until unsubscribed. */
+    private void pushEvents() {
         try {
-            return Integer.parseInt(s.trim());
-        } catch (NumberFormatException e) {
-            return -1;
+            while (subscription.await()) {
+                outputLock.lock();
+                try {
+                    writeEvents();
+                    out.flush();
+                } finally {
+                    outputLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Connection is going away
         }
     }
+
+    /**
+     * Returns true if this connection is subscribed and has events waiting for writeEvents.
+     */
+    boolean hasPendingEvents() {
+        return subscription != null && !subscription.isIdle();
+    }
+
+    /**
+     * Writes the pending subscription events to out, preceded by EVENT RESYNC if some were
+     * dropped because the client fell too far behind.
+     */
+    void writeEvents() {
+        List<BoardEvent> events = new ArrayList<>();
+        if (subscription.drain(events)) {
+            out.println("EVENT RESYNC");
+        }
+        for (BoardEvent e : events) {
+            writeEvent(e);
+        }
+    }
+
+    /** Writes one event as EVENT lines, as pushed and as returned by GET SINCE. Returns the line count. */
+    private int writeEvent(BoardEvent e) {
+        String prefix = "EVENT " + e.version + " ";
+        switch (e.type) {
+            case POST:
+                Note n = e.note;
+                out.println(prefix + "POST " + n.getX() + " " + n.getY() + " " + n.getColor() + " " + n.getMessage());
+                return 1;
+            case PIN:
+                out.println(prefix + "PIN " + e.x + " " + e.y);
+                return 1;
+            case UNPIN:
+                out.println(prefix + "UNPIN " + e.x + " " + e.y);
+                return 1;
+            case SHAKE:
+                out.println(prefix + "SHAKE " + e.removed.size());
+                for (Note r : e.removed) {
+                    out.println(prefix + "REMOVE " + r.getX() + " " + r.getY());
+                }
+                return 1 + e.removed.size();
+            case CLEAR:
+                out.println(prefix + "CLEAR");
+                return 1;
+            case BATCH:
+                out.println(prefix + "BATCH " + e.items.size());
+                int lines = 1;
+                for (BoardEvent item : e.items) {
+                    lines += writeEvent(item);
+                }
+                return lines;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Stops event delivery; called when the connection closes.
+     */
+    void unsubscribe() {
+        if (subscription != null) {
+            board.unsubscribe(subscription);
+            subscription.close();
+        }
+    }
+
+    private void handleDisconnect() {
+        out.println("OK bye");
+    }
 }
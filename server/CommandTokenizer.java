@@ -0,0 +1,118 @@
+/**
+ * Allocation-free scanning helpers for one command line. Tokens are tracked as [from, to)
+ * offsets into the line instead of substrings, integers are parsed in place, and keywords are
+ * matched case-insensitively character by character.
+ *
+ * <p>The rules mirror the protocol's original regex-based parsing: tokens are separated by
+ * runs of {@code [ \t\n\x0B\f\r]} (the regex {@code \s} class), values are trimmed of every
+ * character up to {@code ' '} as {@link String#trim()} does, and integers follow
+ * {@link Integer#parseInt(String)} and {@link Long#parseLong(String)}.
+ */
+final class CommandTokenizer {
+    private CommandTokenizer() {}
+
+    /** Returns true for the characters the regex {@code \s} class matches. */
+    static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** Returns the end of the token starting at from: the first separator, or to. */
+    static int tokenEnd(CharSequence s, int from, int to) {
+        while (from < to && !isSeparator(s.charAt(from))) from++;
+        return from;
+    }
+
+    /** Returns the first index at or after from that is not a separator, or to. */
+    static int skipSeparators(CharSequence s, int from, int to) {
+        while (from < to && isSeparator(s.charAt(from))) from++;
+        return from;
+    }
+
+    /** Skips leading characters that {@link String#trim()} would remove. */
+    static int trimStart(CharSequence s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') from++;
+        return from;
+    }
+
+    /** Drops trailing characters that {@link String#trim()} would remove. */
+    static int trimEnd(CharSequence s, int from, int to) {
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+        return to;
+    }
+
+    /**
+     * Returns true if s[from, to) starts with key, comparing each character lower-cased.
+     * key must be lower case.
+     */
+    static boolean startsWithLower(CharSequence s, int from, int to, String key) {
+        int n = key.length();
+        if (to - from < n) return false;
+        for (int i = 0; i < n; i++) {
+            if (Character.toLowerCase(s.charAt(from + i)) != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if s[from, to) is exactly keyword with ASCII letters compared without case.
+     * keyword must be ASCII upper case.
+     */
+    static boolean equalsAsciiIgnoreCase(CharSequence s, int from, int to, String keyword) {
+        int n = keyword.length();
+        if (to - from != n) return false;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(from + i);
+            if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+            if (c != keyword.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** Returns true if s[from, to) contains only ASCII characters. */
+    static boolean isAscii(CharSequence s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses s[from, to), trimmed, as a decimal int with the rules of
+     * {@link Integer#parseInt(String)}. Returns -1 if it is not a valid int.
+     */
+    static int parseInt(CharSequence s, int from, int to) {
+        long v = parseLong(s, from, to);
+        return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE ? (int) v : -1;
+    }
+
+    /**
+     * Parses s[from, to), trimmed, as a decimal long with the rules of
+     * {@link Long#parseLong(String)}. Returns -1 if it is not a valid long.
+     */
+    static long parseLong(CharSequence s, int from, int to) {
+        from = trimStart(s, from, to);
+        to = trimEnd(s, from, to);
+        if (from >= to) return -1;
+        boolean negative = false;
+        long limit = -Long.MAX_VALUE;
+        char first = s.charAt(from);
+        if (first == '-' || first == '+') {
+            if (first == '-') {
+                negative = true;
+                limit = Long.MIN_VALUE;
+            }
+            if (++from == to) return -1;
+        }
+        // Accumulate negatively, as Long.parseLong does, so MIN_VALUE does not overflow.
+        long multmin = limit / 10;
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(s.charAt(i), 10);
+            if (digit < 0 || result < multmin) return -1;
+            result *= 10;
+            if (result < limit + digit) return -1;
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+}
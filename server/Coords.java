@@ -0,0 +1,36 @@
+/**
+ * Packs (x, y) integer pairs into a single long so coordinates can be used as
+ * primitive hash keys without allocating.
+ */
+final class Coords {
+    /** Odd, so multiplying by it is invertible; see spread. */
+    private static final long SPREAD = 0x9E3779B97F4A7C15L;
+    private static final long UNSPREAD = 0xF1DE83E19937733DL;
+
+    private Coords() {}
+
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    static int x(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int y(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Scrambles a packed key for use as a boxed map key. Long.hashCode of a packed key is just
+     * x ^ y, which collides for every cell on a diagonal; after spreading it depends on all bits.
+     * Reversed by unspread.
+     */
+    static long spread(long key) {
+        return key * SPREAD;
+    }
+
+    static long unspread(long key) {
+        return key * UNSPREAD;
+    }
+}
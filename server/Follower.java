@@ -0,0 +1,219 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps a read-only board in step with a leader server. Connects as an ordinary client, sends
+ * REPLICATE with the local version and applies the reply and the EVENT lines pushed after it
+ * through the same BoardState methods the leader used, so both boards pass through the same
+ * versions. Each event must carry the next version; events already applied are skipped. On a
+ * gap, a change that does not apply, an EVENT RESYNC or a lost connection it reconnects and
+ * catches up from the version it reached, or from the whole board if the replica diverged.
+ * A follower of a named board selects it with USE before replicating.
+ */
+final class Follower implements Runnable {
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    /** Board to select with USE, or null for the leader's default board. */
+    private final String name;
+    private final BoardState board;
+    /** A change failed to apply, so the next connection must fetch the whole board. */
+    private boolean diverged;
+
+    Follower(String host, int port, String name, BoardState board) {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.board = board;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                follow(socket);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Replication from " + host + ":" + port + (name == null ? "" : " board " + name)
+                        + " interrupted: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Replicates over one connection until it fails; always ends by throwing. */
+    private void follow(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), false);
+        if (name != null) {
+            // The connect greeting describes the default board; USE replies with the named one's.
+            readGreeting(in);
+            out.println("USE " + name);
+            out.flush();
+        }
+        checkGreeting(in);
+        out.println(diverged ? "REPLICATE" : "REPLICATE " + board.snapshot().getVersion());
+        out.flush();
+        System.out.println("Replicating " + host + ":" + port + (name == null ? "" : " board " + name)
+                + " from version " + board.snapshot().getVersion());
+
+        long replyVersion = -1;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("EVENT ")) {
+                apply(line, in);
+            } else if (line.startsWith("VERSION ")) {
+                replyVersion = Long.parseLong(line.substring("VERSION ".length()));
+            } else if (line.equals("RESYNC")) {
+                resync(replyVersion, in);
+            } else if (!line.startsWith("OK")) {
+                throw new IOException("unexpected reply: " + line);
+            }
+        }
+        throw new IOException("connection closed");
+    }
+
+    /** Reads a BOARD/NOTE/COLORS greeting and checks that the leader's board matches this one. */
+    private void checkGreeting(BufferedReader in) throws IOException {
+        List<String> greeting = readGreeting(in);
+        List<String> expected = Arrays.asList(
+                "BOARD " + board.getBoardW() + " " + board.getBoardH(),
+                "NOTE " + board.getNoteW() + " " + board.getNoteH());
+        boolean sameColors = greeting.size() == 3 && greeting.get(2).startsWith("COLORS")
+                && new HashSet<>(Arrays.asList(greeting.get(2).substring("COLORS".length()).trim().split(" +")))
+                        .equals(board.getValidColors());
+        if (!greeting.subList(0, Math.min(2, greeting.size())).equals(expected) || !sameColors) {
+            throw new IOException("leader serves a board of different dimensions or colours");
+        }
+    }
+
+    /** Reads a greeting up to its OK, without the OK. */
+    private static List<String> readGreeting(BufferedReader in) throws IOException {
+        List<String> greeting = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith("OK")) {
+            if (line.startsWith("ERROR")) throw new IOException(line);
+            greeting.add(line);
+        }
+        if (line == null) throw new IOException("connection closed");
+        return greeting;
+    }
+
+    /**
+     * Applies one EVENT line, reading the item lines that follow a BATCH header. Lines with a
+     * version already reached are skipped, which also covers the REMOVE lines after a SHAKE.
+     */
+    private void apply(String line, BufferedReader in) throws IOException {
+        if (line.equals("EVENT RESYNC")) throw new IOException("fell behind the leader");
+        String[] p = line.split(" ", 7);
+        long version = Long.parseLong(p[1]);
+        long current = board.snapshot().getVersion();
+        List<BatchItem> items = new ArrayList<>();
+        if (p[2].equals("BATCH")) {
+            // Read the items even if the batch is skipped, so they are not taken for events.
+            int n = Integer.parseInt(p[3]);
+            for (int i = 0; i < n; i++) {
+                String item = in.readLine();
+                if (item == null) throw new IOException("connection closed");
+                items.add(parseItem(item.split(" ", 7)));
+            }
+        }
+        if (version <= current) return;
+        if (version != current + 1) {
+            throw new IOException("missed versions " + (current + 1) + " to " + (version - 1));
+        }
+        String err;
+        switch (p[2]) {
+            case "BATCH":
+                err = null;
+                for (String e : board.applyBatch(items, true)) {
+                    if (e != null) err = e;
+                }
+                break;
+            case "SHAKE":
+                err = board.shake();
+                break;
+            case "CLEAR":
+                err = board.clear();
+                break;
+            default:
+                BatchItem item = parseItem(p);
+                switch (item.type) {
+                    case POST:
+                        err = board.validateAndAddNote(item.x, item.y, item.color, item.message);
+                        break;
+                    case PIN:
+                        err = board.pin(item.x, item.y);
+                        break;
+                    default:
+                        err = board.unpin(item.x, item.y);
+                        break;
+                }
+        }
+        if (err != null || board.snapshot().getVersion() != version) {
+            diverged = true;
+            throw new IOException("version " + version + " does not apply here (" + err + ")");
+        }
+    }
+
+    /** Parses a POST, PIN or UNPIN event line split on its first six spaces. */
+    private static BatchItem parseItem(String[] p) throws IOException {
+        int x = Integer.parseInt(p[3]);
+        int y = Integer.parseInt(p[4]);
+        switch (p[2]) {
+            case "POST":
+                return BatchItem.post(x, y, p[5], p.length > 6 ? p[6] : "");
+            case "PIN":
+                return BatchItem.pin(x, y);
+            case "UNPIN":
+                return BatchItem.unpin(x, y);
+            default:
+                throw new IOException("unexpected event: " + String.join(" ", p));
+        }
+    }
+
+    /** Replaces the board with the NOTE and PIN lines of a RESYNC reply, up to its OK. */
+    private void resync(long version, BufferedReader in) throws IOException {
+        List<Note> notes = new ArrayList<>();
+        LongIntHashMap pins = new LongIntHashMap();
+        String line;
+        while ((line = in.readLine()) != null && !line.startsWith("OK")) {
+            String[] p = line.split(" ", 5);
+            int x = Integer.parseInt(p[1]);
+            int y = Integer.parseInt(p[2]);
+            if (p[0].equals("NOTE")) {
+                Note n = new Note(x, y, p[3], p.length > 4 ? p[4] : "");
+                n.setSeq(notes.size());
+                notes.add(n);
+            } else if (p[0].equals("PIN")) {
+                pins.increment(Coords.pack(x, y));
+            } else {
+                throw new IOException("unexpected reply: " + line);
+            }
+        }
+        if (line == null) throw new IOException("connection closed");
+        long[] pinKeys = new long[pins.size()];
+        int[] pinCounts = new int[pins.size()];
+        int[] i = {0};
+        pins.forEach((key, count) -> {
+            pinKeys[i[0]] = key;
+            pinCounts[i[0]++] = count;
+        });
+        board.restore(version, notes.size(), notes, pinKeys, pinCounts);
+        diverged = false;
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assembles UTF-8 input bytes into lines, accepting the same terminators as
+ * {@link java.io.BufferedReader#readLine()}: "\n", "\r" or "\r\n". Bytes are pushed one at a
+ * time, so callers can tell whether a complete line is available without blocking.
+ */
+final class LineDecoder {
+    private byte[] line = new byte[128];
+    private int length;
+    /** True after a '\r', so that a following '\n' does not end a second, empty line. */
+    private boolean afterCr;
+
+    /**
+     * Consumes one byte. Returns the completed line if b terminates one, otherwise null.
+     */
+    String push(byte b) {
+        if (b == '\n' && afterCr) {
+            afterCr = false;
+            return null;
+        }
+        if (b == '\n' || b == '\r') {
+            afterCr = b == '\r';
+            return take();
+        }
+        afterCr = false;
+        if (length == line.length) line = Arrays.copyOf(line, length * 2);
+        line[length++] = b;
+        return null;
+    }
+
+    /**
+     * Returns the unterminated last line at end of input, or null if there is none.
+     */
+    String finish() {
+        return length > 0 ? take() : null;
+    }
+
+    private String take() {
+        String s = new String(line, 0, length, StandardCharsets.UTF_8);
+        length = 0;
+        return s;
+    }
+}
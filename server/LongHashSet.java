@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of primitive longs (linear probing, backward-shift deletion).
+ * Used for packed coordinate keys so membership checks do not box or allocate.
+ * Not thread-safe.
+ */
+class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] table;
+    private int size;
+    private boolean containsEmptyKey;
+
+    LongHashSet() {
+        table = newTable(16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(long key) {
+        if (key == EMPTY) return containsEmptyKey;
+        int mask = table.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = table[i];
+            if (k == key) return true;
+            if (k == EMPTY) return false;
+        }
+    }
+
+    /**
+     * Adds the key. Returns false if it was already present.
+     */
+    boolean add(long key) {
+        if (key == EMPTY) {
+            if (containsEmptyKey) return false;
+            containsEmptyKey = true;
+            size++;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == key) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        if (++size * 2 > table.length) resize(table.length * 2);
+        return true;
+    }
+
+    /**
+     * Removes the key. Returns false if it was not present.
+     */
+    boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!containsEmptyKey) return false;
+            containsEmptyKey = false;
+            size--;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != key) {
+            if (table[i] == EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+        // Shift following entries of the same probe run back into the hole.
+        int hole = i;
+        for (int j = (hole + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(table[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    void clear() {
+        table = newTable(16);
+        size = 0;
+        containsEmptyKey = false;
+    }
+
+    private void resize(int capacity) {
+        long[] old = table;
+        table = newTable(capacity);
+        int mask = capacity - 1;
+        for (long k : old) {
+            if (k == EMPTY) continue;
+            int i = slot(k, mask);
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = k;
+        }
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] t = new long[capacity];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+
+    static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
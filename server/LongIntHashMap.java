@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from primitive long keys to positive int counts (linear probing,
+ * backward-shift deletion). Keys are packed coordinates, so no boxing happens on lookups.
+ * Not thread-safe.
+ */
+class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /** Receives one entry during {@link #forEach}. */
+    interface EntryVisitor {
+        void visit(long key, int value);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int emptyKeyValue;
+
+    LongIntHashMap() {
+        allocate(16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the count stored for key, or 0 if absent.
+     */
+    int get(long key) {
+        if (key == EMPTY) return emptyKeyValue;
+        int mask = keys.length - 1;
+        for (int i = LongHashSet.slot(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) return values[i];
+            if (k == EMPTY) return 0;
+        }
+    }
+
+    /**
+     * Adds one to the count for key.
+     */
+    void increment(long key) {
+        if (key == EMPTY) {
+            if (emptyKeyValue++ == 0) size++;
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = LongHashSet.slot(key, mask);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i]++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = 1;
+        if (++size * 2 > keys.length) resize(keys.length * 2);
+    }
+
+    /**
+     * Subtracts one from the count for key, dropping the entry when it reaches zero.
+     * Returns false if the key was absent.
+     */
+    boolean decrement(long key) {
+        if (key == EMPTY) {
+            if (emptyKeyValue == 0) return false;
+            if (--emptyKeyValue == 0) size--;
+            return true;
+        }
+        int mask = keys.length - 1;
+        int i = LongHashSet.slot(key, mask);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) return false;
+            i = (i + 1) & mask;
+        }
+        if (--values[i] > 0) return true;
+
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = LongHashSet.slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        values[hole] = 0;
+        size--;
+        return true;
+    }
+
+    void forEach(EntryVisitor visitor) {
+        if (emptyKeyValue > 0) visitor.visit(EMPTY, emptyKeyValue);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    void clear() {
+        allocate(16);
+        size = 0;
+        emptyKeyValue = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long k = oldKeys[j];
+            if (k == EMPTY) continue;
+            int i = LongHashSet.slot(k, mask);
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event-loop server: the calling thread accepts connections and hands them round-robin to a
+ * small fixed pool of I/O threads, each multiplexing many connections over its own Selector.
+ * Input is split into lines incrementally and passed to the same ClientHandler command code the
+ * thread-per-connection server uses. Responses are buffered per connection and written through
+ * a direct ByteBuffer owned by the I/O thread. Commands stop being parsed once a connection's
+ * unsent output passes OUTPUT_LIMIT, and a connection with unsent output is not read, so a slow
+ * client cannot make the server buffer unbounded responses.
+ *
+ * <p>Subscription events are written by the I/O thread too: a connection with pending events
+ * is queued for its loop, which appends them to the connection's output once its backlog is
+ * gone. Until then they wait in the bounded Subscription queue.
+ */
+public class NioServer {
+    /**
+     * Unsent output at which a connection stops parsing input. The output may still exceed it
+     * by one response; the rest of the input waits until the backlog has been written.
+     */
+    private static final int OUTPUT_LIMIT = 64 * 1024;
+
+    private final int port;
+    private final Boards boards;
+    private final int ioThreads;
+
+    public NioServer(int port, Boards boards, int ioThreads) {
+        this.port = port;
+        this.boards = boards;
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Accepts connections until the server socket fails.
+     */
+    public void serve() throws IOException {
+        EventLoop[] loops = new EventLoop[ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(boards);
+            Thread t = new Thread(loops[i], "bboard-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /** One I/O thread and the connections registered with its selector. */
+    private static final class EventLoop implements Runnable {
+        private final Boards boards;
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        /** Connections with pending subscription events, queued from writer threads. */
+        private final Queue<Connection> eventsReady = new ConcurrentLinkedQueue<>();
+        /** Shared by all connections of this loop for socket reads and writes. */
+        private final ByteBuffer io = ByteBuffer.allocateDirect(64 * 1024);
+
+        EventLoop(Boards boards) throws IOException {
+            this.boards = boards;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        void eventsReady(Connection c) {
+            eventsReady.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                    return;
+                }
+                SocketChannel channel;
+                while ((channel = incoming.poll()) != null) {
+                    open(channel);
+                }
+                // Only the connections queued so far, so a steady event stream cannot starve reads.
+                Connection ready;
+                for (int n = eventsReady.size(); n > 0 && (ready = eventsReady.poll()) != null; n--) {
+                    try {
+                        ready.pushEvents(io);
+                    } catch (IOException | CancelledKeyException e) {
+                        ready.close();
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    // The pass above may have closed this connection after it was selected.
+                    if (!key.isValid()) continue;
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) c.read(io);
+                        if (key.isValid() && key.isWritable()) c.flush(io);
+                    } catch (IOException | CancelledKeyException e) {
+                        // Client disconnected or I/O error
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection c = new Connection(channel, key, boards, this);
+                key.attach(c);
+                c.start(io);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /** Exposes the written bytes without copying them. */
+    private static final class ByteSink extends ByteArrayOutputStream {
+        byte[] array() { return buf; }
+    }
+
+    /** Per-connection line assembly and pending output. */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteSink output = new ByteSink();
+        private final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), false);
+        private final ClientHandler handler;
+        private final EventLoop loop;
+
+        private final LineDecoder lines = new LineDecoder();
+        /** Input read but not yet parsed because output passed OUTPUT_LIMIT, or null. */
+        private ByteBuffer unparsed;
+        /** Bytes of output already written to the socket. */
+        private int sent;
+        /** Set after DISCONNECT: the connection closes once its output is sent. */
+        private boolean closing;
+
+        Connection(SocketChannel channel, SelectionKey key, Boards boards, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.handler = new ClientHandler(boards, out, () -> loop.eventsReady(this));
+        }
+
+        void start(ByteBuffer io) throws IOException {
+            handler.sendInit();
+            out.flush();
+            flush(io);
+        }
+
+        void read(ByteBuffer io) throws IOException {
+            io.clear();
+            int n = channel.read(io);
+            if (n < 0) {
+                // Like BufferedReader, run a last command that has no line terminator.
+                String line = lines.finish();
+                if (line != null) endLine(line);
+                closing = true;
+            } else {
+                io.flip();
+                parse(io);
+                if (io.hasRemaining() && !closing) {
+                    unparsed = ByteBuffer.allocate(io.remaining()).put(io).flip();
+                }
+            }
+            out.flush();
+            flush(io);
+        }
+
+        /** Runs the complete lines in input until it is used up or output passes OUTPUT_LIMIT. */
+        private void parse(ByteBuffer input) {
+            while (input.hasRemaining() && !closing && output.size() < OUTPUT_LIMIT) {
+                String line = lines.push(input.get());
+                if (line != null) {
+                    endLine(line);
+                    out.flush();
+                }
+            }
+        }
+
+        /**
+         * Appends pending subscription events to the output and sends it, unless earlier
+         * output is still unsent; flush then requeues the connection once it is.
+         */
+        void pushEvents(ByteBuffer io) throws IOException {
+            if (closing || !key.isValid() || output.size() > 0) return;
+            handler.writeEvents();
+            out.flush();
+            flush(io);
+        }
+
+        private void endLine(String line) {
+            String text = line.trim();
+            if (text.isEmpty()) return;
+            if (handler.processCommand(text)) {
+                closing = true; // DISCONNECT
+            }
+        }
+
+        /**
+         * Writes pending output through io, then parses any input held back by OUTPUT_LIMIT.
+         * If the socket cannot take it all, waits for OP_WRITE and stops reading until the
+         * backlog is gone.
+         */
+        void flush(ByteBuffer io) throws IOException {
+            while (true) {
+                byte[] data = output.array();
+                int total = output.size();
+                while (sent < total) {
+                    io.clear();
+                    io.put(data, sent, Math.min(io.capacity(), total - sent));
+                    io.flip();
+                    sent += channel.write(io);
+                    if (io.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                output.reset();
+                sent = 0;
+                if (unparsed == null || closing) break;
+                parse(unparsed);
+                if (!unparsed.hasRemaining()) unparsed = null;
+            }
+            if (closing) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+                if (handler.hasPendingEvents()) loop.eventsReady(this);
+            }
+        }
+
+        void close() {
+            handler.unsubscribe();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
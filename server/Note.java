@@ -7,6 +7,10 @@ public class Note {
     private final int y;
     private final String color;
     private final String message;
+    /** Insertion order on the board; assigned by BoardState when the note is added. */
+    private long seq;
+    /** Number of pins inside this note's rectangle; maintained by BoardState under its lock. */
+    private int pinCount;
 
     public Note(int x, int y, String color, String message) {
         this.x = x;
@@ -19,6 +23,12 @@ public class Note {
     public int getY() { return y; }
     public String getColor() { return color; }
     public String getMessage() { return message; }
+    public long getSeq() { return seq; }
+
+    public int getPinCount() { return pinCount; }
+
+    void setSeq(long seq) { this.seq = seq; }
+    int addPins(int delta) { return pinCount += delta; }
 
     /**
      * Returns true if the point (px, py) lies inside this note's rectangle.
@@ -27,6 +37,13 @@ public class Note {
         return px >= x && px < x + noteW && py >= y && py < y + noteH;
     }
 
+    /**
+     * Returns true if this note's rectangle shares a point with [x1, x2] x [y1, y2].
+     */
+    public boolean intersects(int x1, int y1, int x2, int y2, int noteW, int noteH) {
+        return x <= x2 && x + noteW > x1 && y <= y2 && y + noteH > y1;
+    }
+
     /**
      * Returns true if this note completely overlaps another (same upper-left and same dimensions).
      */
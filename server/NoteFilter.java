@@ -0,0 +1,32 @@
+/**
+ * Criteria of a GET or COUNT query; a note matches if it meets every criterion that is set.
+ * Built by the command parser and evaluated against a BoardSnapshot.
+ */
+final class NoteFilter {
+    /** Exact colour, or null for any colour. */
+    String color;
+    /** Text the message must contain, or null for any message. */
+    String refersTo;
+    /** The note must contain the point (cx, cy). */
+    boolean useContains;
+    int cx;
+    int cy;
+    /** The note must intersect the rectangle [x1, x2] x [y1, y2], corners inclusive. */
+    boolean useWithin;
+    int x1;
+    int y1;
+    int x2;
+    int y2;
+
+    /** Returns true if some criterion is spatial, so candidates can come from the grid. */
+    boolean isSpatial() {
+        return useContains || useWithin;
+    }
+
+    boolean matches(Note n, int noteW, int noteH) {
+        return (color == null || n.getColor().equals(color))
+            && (refersTo == null || n.getMessage().contains(refersTo))
+            && (!useContains || n.contains(cx, cy, noteW, noteH))
+            && (!useWithin || n.intersects(x1, y1, x2, y2, noteW, noteH));
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * One generation of the board's note indexes: all notes, notes by colour, the spatial grid and
+ * the message trigrams. Every structure is built from append-only NoteLists, so one writer and
+ * any number of snapshot readers may share a generation concurrently, each reader seeing only
+ * notes below its sequence limit. Notes are never removed: SHAKE and CLEAR start a new
+ * generation instead.
+ */
+final class NoteIndex {
+    final NoteList all = new NoteList();
+    final NoteList[] byColor;
+    final SpatialGrid grid;
+    final TrigramIndex messages = new TrigramIndex();
+    final int noteW;
+    final int noteH;
+
+    NoteIndex(int colorCount, int noteW, int noteH) {
+        this.noteW = noteW;
+        this.noteH = noteH;
+        byColor = new NoteList[colorCount];
+        for (int i = 0; i < colorCount; i++) {
+            byColor[i] = new NoteList();
+        }
+        grid = new SpatialGrid(noteW, noteH);
+    }
+
+    /**
+     * Indexes a note whose seq is higher than any already indexed. Callers must serialize writers.
+     */
+    void add(Note n, int colorId) {
+        all.add(n);
+        byColor[colorId].add(n);
+        grid.add(n);
+        messages.add(n);
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Append-only list of notes in insertion order. Safe for one writer at a time and any number
+ * of lock-free readers: an element is fully stored before the size that covers it is published,
+ * and a grown array is a copy, so a reader never sees a half-written slot. Readers bound their
+ * view of the list by a snapshot's sequence limit.
+ */
+final class NoteList {
+    private static final Note[] EMPTY = new Note[0];
+
+    private volatile Note[] items = EMPTY;
+    private volatile int size;
+
+    /**
+     * Appends a note. Callers must serialize writers.
+     */
+    void add(Note n) {
+        Note[] a = items;
+        int s = size;
+        if (s == a.length) {
+            a = Arrays.copyOf(a, Math.max(4, s * 2));
+        }
+        a[s] = n;
+        items = a;
+        size = s + 1;
+    }
+
+    /**
+     * Returns the number of notes appended so far, which bounds the notes visible at any limit.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of notes with seq below limit, found by binary search.
+     */
+    int countBelow(long limit) {
+        int s = size;
+        Note[] a = items;
+        int lo = 0;
+        int hi = s;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid].getSeq() < limit) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Adds to out every note with seq below limit that passes filter, in insertion order.
+     */
+    void collect(long limit, Predicate<Note> filter, List<Note> out) {
+        int s = size;
+        Note[] a = items;
+        for (int i = 0; i < s; i++) {
+            Note n = a[i];
+            if (n.getSeq() >= limit) break;
+            if (filter.test(n)) out.add(n);
+        }
+    }
+
+    /**
+     * Passes each note with seq above after and below limit to visitor, in insertion order,
+     * until the visitor returns false. Returns false if it was stopped. Insertion order is seq
+     * order, so the first note is found by binary search.
+     */
+    boolean scan(long after, long limit, Predicate<Note> visitor) {
+        int s = size;
+        Note[] a = items;
+        for (int i = indexAfter(after); i < s; i++) {
+            Note n = a[i];
+            if (n.getSeq() >= limit) break;
+            if (!visitor.test(n)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first note with seq above after, found by binary search, or
+     * the current size if there is none.
+     */
+    int indexAfter(long after) {
+        int s = size;
+        Note[] a = items;
+        int lo = 0;
+        int hi = s;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid].getSeq() <= after) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the note at index i, which must be below a size already read.
+     */
+    Note get(int i) {
+        return items[i];
+    }
+
+    /**
+     * Passes every note with seq below limit to action, in insertion order.
+     */
+    void forEach(long limit, Consumer<Note> action) {
+        int s = size;
+        Note[] a = items;
+        for (int i = 0; i < s; i++) {
+            Note n = a[i];
+            if (n.getSeq() >= limit) break;
+            action.accept(n);
+        }
+    }
+
+    /**
+     * Returns true if some note with seq below limit passes filter.
+     */
+    boolean any(long limit, Predicate<Note> filter) {
+        int s = size;
+        Note[] a = items;
+        for (int i = 0; i < s; i++) {
+            Note n = a[i];
+            if (n.getSeq() >= limit) break;
+            if (filter.test(n)) return true;
+        }
+        return false;
+    }
+}
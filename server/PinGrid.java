@@ -0,0 +1,92 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Multiset of pin coordinates, bucketed by note-sized grid cell so that the pins inside a
+ * note's rectangle can be found without scanning the board. Within a cell, pins are kept as
+ * packed coordinate counts. Not thread-safe; BoardState guards it with its own lock.
+ */
+class PinGrid {
+    private final int cellW;
+    private final int cellH;
+    private final Map<Long, LongIntHashMap> cells = new HashMap<>();
+    private int size;
+
+    PinGrid(int cellW, int cellH) {
+        this.cellW = cellW;
+        this.cellH = cellH;
+    }
+
+    /**
+     * Returns the total number of pins, counting duplicates.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of pins at exactly (x, y).
+     */
+    int count(int x, int y) {
+        LongIntHashMap cell = cells.get(cellOf(x, y));
+        return cell == null ? 0 : cell.get(Coords.pack(x, y));
+    }
+
+    void add(int x, int y) {
+        cells.computeIfAbsent(cellOf(x, y), k -> new LongIntHashMap()).increment(Coords.pack(x, y));
+        size++;
+    }
+
+    /**
+     * Removes one pin at (x, y). Returns false if there is none.
+     */
+    boolean remove(int x, int y) {
+        long cellKey = cellOf(x, y);
+        LongIntHashMap cell = cells.get(cellKey);
+        if (cell == null || !cell.decrement(Coords.pack(x, y))) return false;
+        if (cell.size() == 0) cells.remove(cellKey);
+        size--;
+        return true;
+    }
+
+    void clear() {
+        cells.clear();
+        size = 0;
+    }
+
+    /**
+     * Visits each distinct pin coordinate with its count.
+     */
+    void forEach(LongIntHashMap.EntryVisitor visitor) {
+        for (LongIntHashMap cell : cells.values()) {
+            cell.forEach(visitor);
+        }
+    }
+
+    /**
+     * Returns the number of pins inside the note-sized rectangle with upper-left corner (x, y).
+     */
+    int countInNote(int x, int y) {
+        int total = 0;
+        int cx = Math.floorDiv(x, cellW);
+        int cy = Math.floorDiv(y, cellH);
+        for (int gx = cx; gx <= cx + 1; gx++) {
+            for (int gy = cy; gy <= cy + 1; gy++) {
+                LongIntHashMap cell = cells.get(Coords.spread(Coords.pack(gx, gy)));
+                if (cell == null) continue;
+                int[] sum = {0};
+                cell.forEach((key, count) -> {
+                    int px = Coords.x(key);
+                    int py = Coords.y(key);
+                    if (px >= x && px < x + cellW && py >= y && py < y + cellH) sum[0] += count;
+                });
+                total += sum[0];
+            }
+        }
+        return total;
+    }
+
+    private long cellOf(int x, int y) {
+        return Coords.spread(Coords.pack(Math.floorDiv(x, cellW), Math.floorDiv(y, cellH)));
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Immutable multiset of pin coordinates, stored as a hash array mapped trie from packed
+ * coordinate to count. Adding or removing a pin copies only the path to its leaf, so each
+ * board mutation can publish a new PinMap in O(log32 n) while older snapshots keep theirs.
+ */
+final class PinMap {
+    static final PinMap EMPTY = new PinMap(null, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final class Leaf {
+        final long key;
+        final int count;
+
+        Leaf(long key, int count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /** Slots hold either a Leaf or a child Node, packed by bitmap. */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PinMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the total number of pins, counting duplicates.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of pins at the packed coordinate key.
+     */
+    int count(long key) {
+        long h = hash(key);
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            int bit = 1 << (int) ((h >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) return 0;
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return leaf.key == key ? leaf.count : 0;
+            }
+            node = (Node) slot;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a map with one more pin at key.
+     */
+    PinMap plus(long key) {
+        Node r = root == null ? new Node(0, new Object[0]) : root;
+        return new PinMap(add(r, key, hash(key), 0), size + 1);
+    }
+
+    /**
+     * Returns a map with one pin fewer at key, or null if there is no pin at key.
+     */
+    PinMap minus(long key) {
+        if (count(key) == 0) return null;
+        return new PinMap(remove(root, key, hash(key), 0), size - 1);
+    }
+
+    /**
+     * Visits each distinct pin coordinate with its count.
+     */
+    void forEach(LongIntHashMap.EntryVisitor visitor) {
+        if (root != null) visit(root, visitor);
+    }
+
+    private static void visit(Node node, LongIntHashMap.EntryVisitor visitor) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                visitor.visit(leaf.key, leaf.count);
+            } else {
+                visit((Node) slot, visitor);
+            }
+        }
+    }
+
+    private static Node add(Node node, long key, long h, int shift) {
+        int bit = 1 << (int) ((h >>> shift) & MASK);
+        int idx = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, idx);
+            slots[idx] = new Leaf(key, 1);
+            System.arraycopy(node.slots, idx, slots, idx + 1, node.slots.length - idx);
+            return new Node(node.bitmap | bit, slots);
+        }
+        Object slot = node.slots[idx];
+        Object replacement;
+        if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+            if (leaf.key == key) {
+                replacement = new Leaf(key, leaf.count + 1);
+            } else {
+                replacement = pair(leaf, hash(leaf.key), new Leaf(key, 1), h, shift + BITS);
+            }
+        } else {
+            replacement = add((Node) slot, key, h, shift + BITS);
+        }
+        Object[] slots = node.slots.clone();
+        slots[idx] = replacement;
+        return new Node(node.bitmap, slots);
+    }
+
+    /**
+     * Builds the smallest subtree holding two leaves with distinct hashes. Hashes are a
+     * bijection of keys, so the leaves always land in different slots by the last level.
+     */
+    private static Node pair(Leaf a, long ha, Leaf b, long hb, int shift) {
+        int ia = (int) ((ha >>> shift) & MASK);
+        int ib = (int) ((hb >>> shift) & MASK);
+        if (ia == ib) {
+            return new Node(1 << ia, new Object[]{pair(a, ha, b, hb, shift + BITS)});
+        }
+        Object[] slots = ia < ib ? new Object[]{a, b} : new Object[]{b, a};
+        return new Node((1 << ia) | (1 << ib), slots);
+    }
+
+    /** Assumes key is present. Returns null when the node becomes empty. */
+    private static Node remove(Node node, long key, long h, int shift) {
+        int bit = 1 << (int) ((h >>> shift) & MASK);
+        int idx = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.slots[idx];
+        Object replacement;
+        if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+            replacement = leaf.count > 1 ? new Leaf(key, leaf.count - 1) : null;
+        } else {
+            replacement = remove((Node) slot, key, h, shift + BITS);
+        }
+        if (replacement != null) {
+            Object[] slots = node.slots.clone();
+            slots[idx] = replacement;
+            return new Node(node.bitmap, slots);
+        }
+        if (node.slots.length == 1) return null;
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, idx);
+        System.arraycopy(node.slots, idx + 1, slots, idx, slots.length - idx);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary image of a BoardSnapshot, written in the background from the immutable
+ * snapshot so writers are never blocked, and memory-mapped at startup.
+ *
+ * <p>Layout after the board header (see WriteAheadLog.header): the version and seq limit as
+ * longs; the note count, then per note in seq order its packed coordinates as a long, colour
+ * ordinal, seq delta from the previous note and message byte length as varints, and the UTF-8
+ * message; the pin table, as a count of distinct coordinates then packed coordinates and
+ * varint counts; and a CRC32 of everything before it. Varints use 7 bits per byte, low first.
+ */
+final class SnapshotFile {
+    private static final int MAGIC = 0x4242534E; // "BBSN"
+
+    private SnapshotFile() {}
+
+    /**
+     * Writes snapshot of board to path, replacing any previous file only once the new one is
+     * complete and forced to disk.
+     */
+    static void write(BoardSnapshot snapshot, BoardState board, Path path) throws IOException {
+        // Colour ordinals follow the sorted colour names recorded in the header.
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (String c : new TreeSet<>(board.getValidColors())) {
+            ordinals.put(c, ordinals.size());
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(WriteAheadLog.header(MAGIC, board));
+            out.writeLong(snapshot.getVersion());
+            out.writeLong(snapshot.getSeqLimit());
+            out.writeInt(snapshot.getNoteCount());
+            long[] prevSeq = {-1};
+            IOException[] error = {null};
+            snapshot.forEachNote(new NoteFilter(), -1, n -> {
+                try {
+                    byte[] message = n.getMessage().getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(Coords.pack(n.getX(), n.getY()));
+                    writeVarint(out, ordinals.get(n.getColor()));
+                    writeVarint(out, n.getSeq() - prevSeq[0]);
+                    writeVarint(out, message.length);
+                    out.write(message);
+                    prevSeq[0] = n.getSeq();
+                    return true;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            int[] coordinates = {0};
+            snapshot.forEachPin((key, count) -> coordinates[0]++);
+            out.writeInt(coordinates[0]);
+            snapshot.forEachPin((key, count) -> {
+                try {
+                    out.writeLong(key);
+                    writeVarint(out, count);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the snapshot at path and restores it into board, which must be new. Throws if the
+     * file is damaged or was written for a board of different dimensions or colours.
+     */
+    static void load(Path path, BoardState board) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(path + " is too large to map");
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < 4) throw new IOException(path + " is truncated");
+            CRC32 crc = new CRC32();
+            crc.update(buf.slice(0, (int) size - 4));
+            if ((int) crc.getValue() != buf.getInt((int) size - 4)) {
+                throw new IOException(path + " is damaged (checksum mismatch)");
+            }
+            byte[] expected = WriteAheadLog.header(MAGIC, board);
+            if (size < expected.length + 4 || !buf.slice(0, expected.length).equals(ByteBuffer.wrap(expected))) {
+                throw new IOException(path + " was written for a board of different dimensions or colours");
+            }
+            buf.position(expected.length);
+            String[] colors = new TreeSet<>(board.getValidColors()).toArray(new String[0]);
+            long version = buf.getLong();
+            long seqLimit = buf.getLong();
+            int noteCount = buf.getInt();
+            List<Note> notes = new ArrayList<>(noteCount);
+            byte[] message = new byte[256];
+            long seq = -1;
+            for (int i = 0; i < noteCount; i++) {
+                long key = buf.getLong();
+                String color = colors[(int) readVarint(buf)];
+                seq += readVarint(buf);
+                int length = (int) readVarint(buf);
+                if (length > message.length) message = new byte[Math.max(length, message.length * 2)];
+                buf.get(message, 0, length);
+                Note n = new Note(Coords.x(key), Coords.y(key), color, new String(message, 0, length, StandardCharsets.UTF_8));
+                n.setSeq(seq);
+                notes.add(n);
+            }
+            int pinCount = buf.getInt();
+            long[] pinKeys = new long[pinCount];
+            int[] pinCounts = new int[pinCount];
+            for (int i = 0; i < pinCount; i++) {
+                pinKeys[i] = buf.getLong();
+                pinCounts[i] = (int) readVarint(buf);
+            }
+            board.restore(version, seqLimit, notes, pinKeys, pinCounts);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException(path + " is damaged", e);
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarint(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+    }
+}
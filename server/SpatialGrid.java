@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Uniform grid over note upper-left corners, used to answer point-containment and rectangle
+ * queries. Cells are exactly one note in size, so any note containing (px, py) is bucketed
+ * either in the cell of (px, py) or in its left, upper or upper-left neighbour, and a note
+ * intersecting a rectangle is bucketed in the rectangle's cells or the row and column of cells
+ * before them. Buckets are NoteLists, shared with snapshots as described in NoteIndex.
+ */
+class SpatialGrid {
+    static final Comparator<Note> BY_SEQ = Comparator.comparingLong(Note::getSeq);
+    /** Seq width of the first window forEachWithin sweeps; later windows double it. */
+    private static final long FIRST_WINDOW = 256;
+
+    private final int cellW;
+    private final int cellH;
+    private final Map<Long, NoteList> cells = new ConcurrentHashMap<>();
+
+    SpatialGrid(int cellW, int cellH) {
+        this.cellW = cellW;
+        this.cellH = cellH;
+    }
+
+    void add(Note n) {
+        cells.computeIfAbsent(cellOf(n.getX(), n.getY()), k -> new NoteList()).add(n);
+    }
+
+    /**
+     * Returns true if at least one note with seq below limit contains the point (px, py).
+     */
+    boolean anyContains(int px, int py, long limit) {
+        int cx = Math.floorDiv(px, cellW);
+        int cy = Math.floorDiv(py, cellH);
+        for (int gx = cx - 1; gx <= cx; gx++) {
+            for (int gy = cy - 1; gy <= cy; gy++) {
+                NoteList bucket = cells.get(cellKey(gx, gy));
+                if (bucket != null && bucket.any(limit, n -> n.contains(px, py, cellW, cellH))) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the notes with seq below limit containing (px, py), in insertion order.
+     */
+    List<Note> containing(int px, int py, long limit) {
+        List<Note> result = new ArrayList<>();
+        int cx = Math.floorDiv(px, cellW);
+        int cy = Math.floorDiv(py, cellH);
+        for (int gx = cx - 1; gx <= cx; gx++) {
+            for (int gy = cy - 1; gy <= cy; gy++) {
+                NoteList bucket = cells.get(cellKey(gx, gy));
+                if (bucket != null) bucket.collect(limit, n -> n.contains(px, py, cellW, cellH), result);
+            }
+        }
+        result.sort(BY_SEQ);
+        return result;
+    }
+
+    /**
+     * Passes the notes with seq above after and below limit intersecting [x1, x2] x [y1, y2] to
+     * visitor, in seq order, until the visitor returns false. Each bucket is already in seq
+     * order, so instead of collecting and sorting every match the buckets are swept in seq
+     * windows that double in width, each sorted on its own; a visitor that stops early, as a
+     * GET page does, costs about one sweep of the buckets plus the notes of the windows it saw.
+     * Visits the rectangle's cells, or every occupied cell if there are fewer of those.
+     */
+    void forEachWithin(int x1, int y1, int x2, int y2, long after, long limit, Predicate<Note> visitor) {
+        int gx1 = Math.floorDiv(x1, cellW) - 1;
+        int gy1 = Math.floorDiv(y1, cellH) - 1;
+        int gx2 = Math.floorDiv(x2, cellW);
+        int gy2 = Math.floorDiv(y2, cellH);
+        List<NoteList> near = new ArrayList<>();
+        if ((long) (gx2 - gx1 + 1) * (gy2 - gy1 + 1) <= cells.size()) {
+            for (int gx = gx1; gx <= gx2; gx++) {
+                for (int gy = gy1; gy <= gy2; gy++) {
+                    NoteList bucket = cells.get(cellKey(gx, gy));
+                    if (bucket != null) near.add(bucket);
+                }
+            }
+        } else {
+            for (Map.Entry<Long, NoteList> e : cells.entrySet()) {
+                long cell = Coords.unspread(e.getKey());
+                int gx = Coords.x(cell);
+                int gy = Coords.y(cell);
+                if (gx >= gx1 && gx <= gx2 && gy >= gy1 && gy <= gy2) near.add(e.getValue());
+            }
+        }
+        // Buckets still holding notes below limit are kept in [0, open); next[i] is the first unseen note.
+        NoteList[] buckets = near.toArray(new NoteList[0]);
+        int open = buckets.length;
+        int[] next = new int[open];
+        int[] sizes = new int[open];
+        for (int i = 0; i < open; i++) {
+            next[i] = buckets[i].indexAfter(after);
+            sizes[i] = buckets[i].size();
+        }
+        List<Note> window = new ArrayList<>();
+        long from = after + 1;
+        long width = FIRST_WINDOW;
+        while (open > 0 && from < limit) {
+            long to = limit - from <= width ? limit : from + width;
+            for (int i = 0; i < open; ) {
+                NoteList bucket = buckets[i];
+                int j = next[i];
+                Note n;
+                while (j < sizes[i] && (n = bucket.get(j)).getSeq() < to) {
+                    if (n.intersects(x1, y1, x2, y2, cellW, cellH)) window.add(n);
+                    j++;
+                }
+                if (j == sizes[i] || to == limit) {
+                    open--;
+                    buckets[i] = buckets[open];
+                    next[i] = next[open];
+                    sizes[i] = sizes[open];
+                } else {
+                    next[i++] = j;
+                }
+            }
+            window.sort(BY_SEQ);
+            for (Note n : window) {
+                if (!visitor.test(n)) return;
+            }
+            window.clear();
+            from = to;
+            width = Math.min(width * 2, Long.MAX_VALUE / 4);
+        }
+    }
+
+    /**
+     * Adds delta to the pin count of every note containing (px, py). Returns how many of them
+     * went from unpinned to pinned, minus how many went the other way. Writer-side only.
+     */
+    int addPins(int px, int py, int delta) {
+        int pinnedChange = 0;
+        for (Note n : containing(px, py, Long.MAX_VALUE)) {
+            int before = n.getPinCount();
+            int after = n.addPins(delta);
+            if (before == 0 && after > 0) pinnedChange++;
+            else if (before > 0 && after == 0) pinnedChange--;
+        }
+        return pinnedChange;
+    }
+
+    private long cellOf(int x, int y) {
+        return cellKey(Math.floorDiv(x, cellW), Math.floorDiv(y, cellH));
+    }
+
+    private static long cellKey(int gx, int gy) {
+        return Coords.spread(Coords.pack(gx, gy));
+    }
+}
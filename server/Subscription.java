@@ -0,0 +1,106 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of board events for one subscribed connection. BoardState delivers events
+ * while holding its publish lock, so delivery never blocks: when a slow client lets the
+ * queue fill up, its events are dropped and replaced by a single resync marker telling the
+ * client to fetch the whole board again. A RESET event, which replaces the whole board, is
+ * turned into the same marker.
+ *
+ * <p>Guarded by a ReentrantLock rather than the monitor, so a push thread waiting for events
+ * on a virtual thread releases its carrier.
+ */
+final class Subscription implements Consumer<BoardEvent> {
+    static final int CAPACITY = 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when events become pending or the subscription closes. */
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<BoardEvent> queue = new ArrayDeque<>();
+    /** Called when events become pending after none were; may be null. */
+    private final Runnable onReady;
+    /** Events were dropped; later ones are dropped too until the marker is drained. */
+    private boolean resync;
+    private boolean closed;
+
+    Subscription(Runnable onReady) {
+        this.onReady = onReady;
+    }
+
+    @Override
+    public void accept(BoardEvent e) {
+        lock.lock();
+        try {
+            if (closed || resync) return;
+            boolean wasIdle = queue.isEmpty();
+            if (queue.size() == CAPACITY || e.type == BoardEvent.Type.RESET) {
+                queue.clear();
+                resync = true;
+            } else {
+                queue.add(e);
+            }
+            if (wasIdle) {
+                changed.signalAll();
+                if (onReady != null) onReady.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the pending events into out. Returns true if events were dropped since the last
+     * drain, in which case the client must resync before applying later events.
+     */
+    boolean drain(List<BoardEvent> out) {
+        lock.lock();
+        try {
+            out.addAll(queue);
+            queue.clear();
+            boolean r = resync;
+            resync = false;
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return queue.isEmpty() && !resync;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until events are pending. Returns false once the subscription is closed.
+     */
+    boolean await() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && queue.isEmpty() && !resync) {
+                changed.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from three-character substrings of note messages to the notes containing
+ * them. A query returns a candidate list that callers must still verify with
+ * {@link String#contains}; patterns shorter than a trigram cannot be answered here.
+ * Posting lists are NoteLists, shared with snapshots as described in NoteIndex.
+ */
+class TrigramIndex {
+    static final int GRAM = 3;
+    private static final NoteList NONE = new NoteList();
+
+    /** Posting lists in insertion order; each note appears at most once per trigram. */
+    private final Map<Long, NoteList> postings = new ConcurrentHashMap<>();
+
+    void add(Note n) {
+        String msg = n.getMessage();
+        LongHashSet seen = new LongHashSet();
+        for (int i = 0; i + GRAM <= msg.length(); i++) {
+            long gram = gramAt(msg, i);
+            if (seen.add(gram)) {
+                postings.computeIfAbsent(gram, k -> new NoteList()).add(n);
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest posting list among the pattern's trigrams, in insertion order,
+     * or null if the pattern is shorter than a trigram. The result is a superset of the
+     * notes whose message contains pattern.
+     */
+    NoteList candidates(String pattern) {
+        if (pattern.length() < GRAM) return null;
+        NoteList best = null;
+        for (int i = 0; i + GRAM <= pattern.length(); i++) {
+            NoteList list = postings.get(gramAt(pattern, i));
+            if (list == null) return NONE;
+            if (best == null || list.size() < best.size()) best = list;
+        }
+        return best;
+    }
+
+    private static long gramAt(String s, int i) {
+        return Coords.spread(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+    }
+}
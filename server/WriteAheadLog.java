@@ -0,0 +1,508 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of board events on local disk, replayed at startup to rebuild the board.
+ *
+ * <p>BoardState appends every published event while holding its publish lock, so records are
+ * in version order, and append only encodes into a memory buffer. One writer thread moves the
+ * buffer to the file and, depending on the fsync policy, forces it to disk. A writer needing
+ * durability waits in awaitDurable until a force covers its version. While one force is in
+ * progress later events accumulate in the buffer, and every writer that arrived meanwhile
+ * shares the next force (group commit), so throughput is not bound to one disk flush per change.
+ *
+ * <p>The file starts with a header describing the board, followed by records of the form
+ * [int length][int crc32][payload]. A record cut short by a crash fails its length or checksum
+ * check and is truncated away at replay.
+ *
+ * <p>With a snapshot file, checkpoint keeps the log short: it renames the log to a rotated
+ * segment and starts a new one, writes a SnapshotFile covering every change in the rotated
+ * segment, then deletes it. Startup maps the snapshot and replays only the records after it.
+ */
+final class WriteAheadLog implements Closeable {
+    /** When appended events are forced to disk. */
+    enum FsyncPolicy {
+        /** Before each change is acknowledged; concurrent writers share one force. */
+        ALWAYS,
+        /** In the background at a fixed interval; a crash may lose the changes of one interval. */
+        INTERVAL,
+        /** Never; the operating system writes the file back when it chooses. */
+        NEVER
+    }
+
+    private static final int MAGIC = 0x4242574C; // "BBWL"
+    private static final int FORMAT = 1;
+
+    /** Growable byte buffer whose contents can be written to a channel without copying. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final Path path;
+    /** The previous segment, from the last rotation, until a snapshot covering it is written. */
+    private final Path rotatedPath;
+    /** Where checkpoint writes snapshots, or null if it is not used. */
+    private final Path snapshotPath;
+    private final BoardState board;
+    /** The current segment. Used only by the writer thread once it has started. */
+    private FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    private final Thread writer;
+
+    /**
+     * Guards the fields below. A j.u.c lock rather than the monitor, so a virtual thread waiting
+     * in awaitDurable releases its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled on every append, write-out, rotation, failure and close. */
+    private final Condition changed = lock.newCondition();
+    /** Records appended but not yet handed to the writer. Guarded by lock. */
+    private Buffer pending = new Buffer();
+    private DataOutputStream pendingOut = new DataOutputStream(pending);
+    /** Scratch space for encoding one payload. Guarded by lock. */
+    private final Buffer payload = new Buffer();
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+    /** Version of the newest appended event. Guarded by lock. */
+    private long appended;
+    /** Version up to which events are written and, for ALWAYS, forced. Guarded by lock. */
+    private long durable;
+    /** Why the log stopped accepting events, or null while it is healthy. Guarded by lock. */
+    private IOException failure;
+    private boolean closed;
+    /** checkpoint is waiting for the writer to start a new segment. Guarded by lock. */
+    private boolean rotateRequested;
+    /** Version of the last change in the rotated segment. Guarded by lock. */
+    private long rotatedAt;
+    /** Version of the newest snapshot file. Used only by checkpoint. */
+    private long checkpointed;
+
+    private WriteAheadLog(Path path, Path snapshotPath, BoardState board, FileChannel channel,
+                          FsyncPolicy policy, long intervalMillis, long snapshotVersion, long version) {
+        this.path = path;
+        this.rotatedPath = rotatedPath(path);
+        this.snapshotPath = snapshotPath;
+        this.board = board;
+        this.channel = channel;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.appended = version;
+        this.durable = version;
+        this.checkpointed = snapshotVersion;
+        this.writer = new Thread(this::writeLoop, "bboard-wal");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Restores board, which must be new, from the snapshot at snapshotPath if there is one and
+     * from the log at path, then attaches the log so that every later change of board is
+     * appended to it. snapshotPath may be null if checkpoints are not used. Throws if a file
+     * was written for a board of different dimensions or colours, or if a complete record
+     * does not apply.
+     */
+    static WriteAheadLog open(Path path, Path snapshotPath, BoardState board, FsyncPolicy policy,
+                              long intervalMillis) throws IOException {
+        if (snapshotPath != null && Files.exists(snapshotPath)) {
+            SnapshotFile.load(snapshotPath, board);
+        }
+        long snapshotVersion = board.snapshot().getVersion();
+        Path rotated = rotatedPath(path);
+        if (Files.exists(rotated)) {
+            try (FileChannel old = FileChannel.open(rotated, StandardOpenOption.READ)) {
+                replay(old, board, rotated);
+            }
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay(channel, board, path);
+            if (end == 0) end = startSegment(channel, board);
+            channel.truncate(end);
+            channel.position(end);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        WriteAheadLog log = new WriteAheadLog(path, snapshotPath, board, channel, policy, intervalMillis,
+                snapshotVersion, board.snapshot().getVersion());
+        log.writer.start();
+        board.setLog(log);
+        return log;
+    }
+
+    private static Path rotatedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".old");
+    }
+
+    /** Writes the header to an empty segment and returns its length. */
+    private static long startSegment(FileChannel channel, BoardState board) throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        writeFully(channel, ByteBuffer.wrap(header(MAGIC, board)));
+        channel.force(true);
+        return channel.position();
+    }
+
+    /**
+     * Applies every complete record to board, skipping those already covered by a restored
+     * snapshot. Returns the offset just past the last one, or 0 if the file does not hold a
+     * complete header yet.
+     */
+    private static long replay(FileChannel channel, BoardState board, Path path) throws IOException {
+        long size = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        byte[] expected = header(MAGIC, board);
+        if (size < expected.length) return 0;
+        byte[] actual = new byte[expected.length];
+        in.readFully(actual);
+        if (!ByteBuffer.wrap(actual).equals(ByteBuffer.wrap(expected))) {
+            throw new IOException(path + " was written for a board of different dimensions or colours");
+        }
+        long offset = actual.length;
+        CRC32 crc = new CRC32();
+        while (size - offset >= 8) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > size - offset - 8) break;
+            byte[] record = new byte[length];
+            in.readFully(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) break;
+            apply(new DataInputStream(new ByteArrayInputStream(record)), board, path);
+            offset += 8 + length;
+        }
+        return offset;
+    }
+
+    private static void apply(DataInputStream in, BoardState board, Path path) throws IOException {
+        BoardEvent.Type type = BoardEvent.Type.values()[in.readUnsignedByte()];
+        long version = in.readLong();
+        if (version <= board.snapshot().getVersion()) return;
+        boolean ok;
+        switch (type) {
+            case BATCH:
+                int n = in.readInt();
+                List<BatchItem> items = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    items.add(readItem(BoardEvent.Type.values()[in.readUnsignedByte()], in));
+                }
+                ok = true;
+                for (String err : board.applyBatch(items, true)) {
+                    ok &= err == null;
+                }
+                break;
+            case SHAKE:
+                ok = board.shake() == null;
+                break;
+            case CLEAR:
+                ok = board.clear() == null;
+                break;
+            default:
+                BatchItem item = readItem(type, in);
+                if (item.type == BatchItem.Type.POST) {
+                    ok = board.validateAndAddNote(item.x, item.y, item.color, item.message) == null;
+                } else if (item.type == BatchItem.Type.PIN) {
+                    ok = board.pin(item.x, item.y) == null;
+                } else {
+                    ok = board.unpin(item.x, item.y) == null;
+                }
+        }
+        if (!ok || board.snapshot().getVersion() != version) {
+            throw new IOException(path + ": change " + version + " does not apply to the replayed board");
+        }
+    }
+
+    private static BatchItem readItem(BoardEvent.Type type, DataInputStream in) throws IOException {
+        int x = in.readInt();
+        int y = in.readInt();
+        switch (type) {
+            case POST:
+                return BatchItem.post(x, y, readString(in), readString(in));
+            case PIN:
+                return BatchItem.pin(x, y);
+            case UNPIN:
+                return BatchItem.unpin(x, y);
+            default:
+                throw new IOException("Unexpected " + type + " inside a batch record");
+        }
+    }
+
+    /**
+     * Encodes the file type magic, then the dimensions and sorted colours that the records of
+     * a log or snapshot file assume.
+     */
+    static byte[] header(int magic, BoardState board) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeInt(magic);
+        out.writeInt(FORMAT);
+        out.writeInt(board.getBoardW());
+        out.writeInt(board.getBoardH());
+        out.writeInt(board.getNoteW());
+        out.writeInt(board.getNoteH());
+        Set<String> colors = new TreeSet<>(board.getValidColors());
+        out.writeInt(colors.size());
+        for (String c : colors) {
+            writeString(out, c);
+        }
+        return b.toByteArray();
+    }
+
+    /**
+     * Appends event. Called by BoardState with its publish lock held, so it only encodes the
+     * record and wakes the writer. Events appended after a failure are dropped.
+     */
+    void append(BoardEvent event) {
+        lock.lock();
+        try {
+            if (failure != null || closed) return;
+            appendLocked(event);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Encodes event as a record at the end of pending. Caller must hold lock. */
+    private void appendLocked(BoardEvent event) {
+        try {
+            payload.reset();
+            payloadOut.writeByte(event.type.ordinal());
+            payloadOut.writeLong(event.version);
+            if (event.type == BoardEvent.Type.BATCH) {
+                payloadOut.writeInt(event.items.size());
+                for (BoardEvent item : event.items) {
+                    payloadOut.writeByte(item.type.ordinal());
+                    writeChange(item);
+                }
+            } else {
+                writeChange(event);
+            }
+            crc.reset();
+            crc.update(payload.contents());
+            pendingOut.writeInt(payload.size());
+            pendingOut.writeInt((int) crc.getValue());
+            payload.writeTo(pendingOut);
+        } catch (IOException e) {
+            // Memory streams do not throw.
+            throw new UncheckedIOException(e);
+        }
+        appended = event.version;
+        changed.signalAll();
+    }
+
+    /** Writes the fields of a POST, PIN or UNPIN; SHAKE and CLEAR have none. */
+    private void writeChange(BoardEvent e) throws IOException {
+        if (e.type == BoardEvent.Type.POST) {
+            payloadOut.writeInt(e.note.getX());
+            payloadOut.writeInt(e.note.getY());
+            writeString(payloadOut, e.note.getColor());
+            writeString(payloadOut, e.note.getMessage());
+        } else if (e.type == BoardEvent.Type.PIN || e.type == BoardEvent.Type.UNPIN) {
+            payloadOut.writeInt(e.x);
+            payloadOut.writeInt(e.y);
+        }
+    }
+
+    /**
+     * Waits until the event with the given version is as durable as the fsync policy
+     * promises: forced to disk for ALWAYS, otherwise merely appended. Returns false if the
+     * log has failed and the event may never reach the disk.
+     */
+    boolean awaitDurable(long version) {
+        lock.lock();
+        try {
+            while (policy == FsyncPolicy.ALWAYS && durable < version && failure == null) {
+                changed.awaitUninterruptibly();
+            }
+            return failure == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the buffered records, then forces them to disk once the policy asks for it. */
+    private void writeLoop() {
+        Buffer batch = new Buffer();
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        try {
+            while (true) {
+                long version;
+                boolean last;
+                boolean rotate;
+                lock.lock();
+                try {
+                    while (pending.size() == 0 && !closed && !rotateRequested) {
+                        if (policy != FsyncPolicy.INTERVAL || !unforced) {
+                            changed.await();
+                            continue;
+                        }
+                        long remaining = intervalMillis - (System.nanoTime() - lastForce) / 1_000_000;
+                        if (remaining <= 0) break;
+                        changed.await(remaining, TimeUnit.MILLISECONDS);
+                    }
+                    // Swap buffers so appends continue while this batch is written.
+                    Buffer b = pending;
+                    pending = batch;
+                    pendingOut = new DataOutputStream(pending);
+                    batch = b;
+                    version = appended;
+                    last = closed;
+                    rotate = rotateRequested;
+                } finally {
+                    lock.unlock();
+                }
+                if (batch.size() > 0) {
+                    writeFully(channel, batch.contents());
+                    batch.reset();
+                    unforced = true;
+                }
+                boolean force = policy == FsyncPolicy.ALWAYS || (policy == FsyncPolicy.INTERVAL
+                        && (last || System.nanoTime() - lastForce >= intervalMillis * 1_000_000));
+                if (force && unforced) {
+                    channel.force(false);
+                    lastForce = System.nanoTime();
+                    unforced = false;
+                }
+                if (rotate) {
+                    // The rotated segment must be complete on disk before later changes go to the new one.
+                    if (unforced) channel.force(false);
+                    unforced = false;
+                    Files.move(path, rotatedPath, StandardCopyOption.ATOMIC_MOVE);
+                    FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.close();
+                    channel = next;
+                    startSegment(channel, board);
+                }
+                lock.lock();
+                try {
+                    durable = version;
+                    if (rotate) {
+                        rotateRequested = false;
+                        rotatedAt = version;
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (last) return;
+            }
+        } catch (IOException e) {
+            System.err.println("Write-ahead log failed: " + e.getMessage());
+            lock.lock();
+            try {
+                failure = e;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the board to the snapshot file and drops the log records it covers,
+     * so that startup replays only the changes after it. Writers are not blocked: the new log
+     * segment is started between two writes, and the snapshot is serialized from an immutable
+     * BoardSnapshot. Called periodically from a single background thread.
+     */
+    void checkpoint() throws IOException {
+        long covered;
+        lock.lock();
+        try {
+            if (appended == checkpointed) return;
+            if (Files.exists(rotatedPath)) {
+                // An earlier checkpoint failed after rotating; a snapshot from now covers that segment too.
+                covered = appended;
+            } else {
+                rotateRequested = true;
+                changed.signalAll();
+                while (rotateRequested && failure == null && !closed) {
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Checkpoint interrupted");
+                    }
+                }
+                if (failure != null) throw new IOException("Log failed", failure);
+                if (rotateRequested) return;
+                covered = rotatedAt;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The changes were appended just before their snapshot was published; wait for it.
+        BoardSnapshot snapshot = board.snapshot();
+        while (snapshot.getVersion() < covered) {
+            Thread.yield();
+            snapshot = board.snapshot();
+        }
+        SnapshotFile.write(snapshot, board, snapshotPath);
+        checkpointed = snapshot.getVersion();
+        Files.deleteIfExists(rotatedPath);
+    }
+
+    /**
+     * Writes out every appended event, forcing it to disk unless the policy is NEVER, and
+     * closes the file. Events appended afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /** Writes s as an int byte count followed by its UTF-8 bytes, so length is unbounded. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new EOFException("String length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}